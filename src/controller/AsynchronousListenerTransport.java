@@ -0,0 +1,71 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+
+import controller.NetworkingLibrary.NetworkListener;
+
+/**
+ * A {@link ListenerTransport} built on an {@link AsynchronousServerSocketChannel}. Its clients use
+ * {@link AsynchronousTransport}s.
+ *
+ * @author Sam Thayer
+ */
+class AsynchronousListenerTransport implements ListenerTransport {
+	/** The object that handles this listener's accepts */
+	private final acceptHelper acceptHandler = new acceptHelper();
+
+	/** The server socket that this is a transport for */
+	private final AsynchronousServerSocketChannel listener;
+
+	/** The settings for the listener and its clients */
+	private final NetworkConfiguration configuration;
+
+	/**
+	 * Makes a transport that listens where the given configuration says. Its clients' callbacks run on the
+	 * configuration's channel group.
+	 */
+	AsynchronousListenerTransport(NetworkConfiguration configuration) throws IOException {
+		this.listener = AsynchronousServerSocketChannel.open(configuration.getChannelGroup());
+		this.configuration = configuration;
+		configuration.configureListener(listener);
+		listener.bind(configuration.getBindAddress());
+	}
+
+	@Override
+	public void accept(NetworkListener listenerState) {
+		listener.accept(listenerState, acceptHandler);
+	}
+
+	@Override
+	public void close() {
+		try {
+			listener.close();
+		} catch (IOException e) {
+			// This might be a bad choice, but let's just ignore the exception. If it won't
+			// let me close the listener there's not much I can do.
+		}
+	}
+
+	/** A helper class to accept callbacks from accepting clients */
+	private class acceptHelper implements CompletionHandler<AsynchronousSocketChannel, NetworkListener> {
+		@Override
+		public void completed(AsynchronousSocketChannel result, NetworkListener listenerState) {
+			try {
+				configuration.configureConnection(result);
+			} catch (IOException e) {
+				new AsynchronousTransport(result).close();
+				NetworkingLibrary.acceptFailed(listenerState);
+				return;
+			}
+			NetworkingLibrary.acceptCompleted(listenerState, new AsynchronousTransport(result));
+		}
+
+		@Override
+		public void failed(Throwable exc, NetworkListener listenerState) {
+			NetworkingLibrary.acceptFailed(listenerState);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
+
+import controller.NetworkingLibrary.NetworkConnection;
+
+/**
+ * A {@link Transport} built on an {@link AsynchronousSocketChannel}. Operations finish on whichever thread its channel
+ * group picks, which is the JVM's default group unless the connection's {@link NetworkConfiguration} asks for one of
+ * its own.
+ *
+ * @author Sam Thayer
+ */
+class AsynchronousTransport implements Transport {
+	/** The object that handles every connection's socket connects */
+	private static final connectHelper connectHandler = new connectHelper();
+
+	/** The object that handles every connection's socket reads */
+	private static final readHelper readHandler = new readHelper();
+
+	/** The object that handles every connection's socket writes */
+	private static final writeHelper writeHandler = new writeHelper();
+
+	/** The socket that this is a transport for */
+	private final AsynchronousSocketChannel socket;
+
+	/**
+	 * Makes a transport for a socket that isn't connected yet, set up the way the given configuration says
+	 */
+	AsynchronousTransport(NetworkConfiguration configuration) throws IOException {
+		this(AsynchronousSocketChannel.open(configuration.getChannelGroup()));
+		configuration.configureConnection(socket);
+	}
+
+	/**
+	 * Makes a transport for the given socket, which has already been set up
+	 */
+	AsynchronousTransport(AsynchronousSocketChannel socket) {
+		this.socket = socket;
+	}
+
+	@Override
+	public void connect(InetSocketAddress address, NetworkConnection connection) {
+		socket.connect(address, connection, connectHandler);
+	}
+
+	@Override
+	public void read(ByteBuffer buffer, NetworkConnection connection) {
+		socket.read(buffer, connection, readHandler);
+	}
+
+	@Override
+	public void write(ByteBuffer[] messages, int count, NetworkConnection connection) {
+		socket.write(messages, 0, count, 0, TimeUnit.MILLISECONDS, connection, writeHandler);
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() throws IOException {
+		return (InetSocketAddress) socket.getRemoteAddress();
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.shutdownInput();
+			socket.shutdownOutput();
+			socket.close();
+		} catch (IOException e) {
+			// This might be a bad choice, but let's just ignore the exception. If it won't
+			// let me close the socket there's not much I can do.
+		}
+	}
+
+	/** A helper class to accept callbacks from socket connects */
+	private static class connectHelper implements CompletionHandler<Void, NetworkConnection> {
+		@Override
+		public void completed(Void result, NetworkConnection connection) {
+			NetworkingLibrary.connectCompleted(connection);
+		}
+
+		@Override
+		public void failed(Throwable exc, NetworkConnection connection) {
+			NetworkingLibrary.connectFailed(connection);
+		}
+	}
+
+	/** A helper class to accept callbacks from socket reads */
+	private static class readHelper implements CompletionHandler<Integer, NetworkConnection> {
+		@Override
+		public void completed(Integer result, NetworkConnection connection) {
+			NetworkingLibrary.readCompleted(connection, result);
+		}
+
+		@Override
+		public void failed(Throwable exc, NetworkConnection connection) {
+			NetworkingLibrary.readFailed(connection);
+		}
+	}
+
+	/** A helper class to accept callbacks from socket writes */
+	private static class writeHelper implements CompletionHandler<Long, NetworkConnection> {
+		@Override
+		public void completed(Long result, NetworkConnection connection) {
+			NetworkingLibrary.writeCompleted(connection);
+		}
+
+		@Override
+		public void failed(Throwable exc, NetworkConnection connection) {
+			NetworkingLibrary.writeFailed(connection);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import controller.NetworkingLibrary.NetworkListener;
+
+/**
+ * A {@link ListenerTransport} that accepts clients with plain blocking calls on a thread of its own. Its clients use
+ * {@link BlockingTransport}s.
+ *
+ * @author Sam Thayer
+ */
+class BlockingListenerTransport implements ListenerTransport {
+	/** The server socket that this is a transport for */
+	private final ServerSocketChannel listener;
+
+	/** A lock to prevent race conditions on accepting and closed */
+	private final Lock requestLock;
+
+	/** Signaled whenever an accept is requested, or the transport is closed */
+	private final Condition requestMade;
+
+	/** The listener that is waiting for a client, or null if there isn't one */
+	private NetworkListener accepting;
+
+	/** True if the accepting thread has been started */
+	private boolean acceptorStarted;
+
+	/** True once the transport has been closed */
+	private boolean closed;
+
+	/** The settings for the listener and its clients */
+	private final NetworkConfiguration configuration;
+
+	/**
+	 * Makes a transport that listens where the given configuration says
+	 */
+	BlockingListenerTransport(NetworkConfiguration configuration) throws IOException {
+		this.listener = ServerSocketChannel.open();
+		this.requestLock = new ReentrantLock();
+		this.requestMade = requestLock.newCondition();
+		this.configuration = configuration;
+		configuration.configureListener(listener);
+		listener.bind(configuration.getBindAddress());
+	}
+
+	@Override
+	public void accept(NetworkListener listenerState) {
+		requestLock.lock();
+		accepting = listenerState;
+		requestMade.signalAll();
+		boolean startAcceptor = !acceptorStarted;
+		acceptorStarted = true;
+		requestLock.unlock();
+
+		if (startAcceptor) {
+			Thread acceptor = new Thread(new acceptor(), "Petroglyph listener");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+	}
+
+	@Override
+	public void close() {
+		requestLock.lock();
+		closed = true;
+		requestMade.signalAll();
+		requestLock.unlock();
+
+		try {
+			listener.close();
+		} catch (IOException e) {
+			// This might be a bad choice, but let's just ignore the exception. If it won't
+			// let me close the listener there's not much I can do.
+		}
+	}
+
+	/** Does the accepting for a transport */
+	private class acceptor implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				NetworkListener listenerState;
+
+				requestLock.lock();
+				try {
+					while (accepting == null && !closed) {
+						requestMade.awaitUninterruptibly();
+					}
+					listenerState = accepting;
+					accepting = null;
+				} finally {
+					requestLock.unlock();
+				}
+
+				if (listenerState == null) {
+					return;
+				}
+
+				BlockingTransport client;
+				SocketChannel channel = null;
+				try {
+					channel = listener.accept();
+					configuration.configureConnection(channel);
+					client = new BlockingTransport(channel);
+				} catch (IOException e) {
+					closeQuietly(channel);
+					NetworkingLibrary.acceptFailed(listenerState);
+					continue;
+				}
+
+				NetworkingLibrary.acceptCompleted(listenerState, client);
+			}
+		}
+	}
+
+	/**
+	 * A helper method that closes a client that couldn't be set up, if there is one
+	 */
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// This might be a bad choice, but let's just ignore the exception. If it won't
+			// let me close the socket there's not much I can do.
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package controller;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import controller.NetworkingLibrary.NetworkConnection;
+
+/**
+ * A {@link Transport} that does plain blocking IO on threads of its own: one that connects and then reads, and one
+ * that writes. Each thread simply waits for its next request, does it, and reports back, so there are no callbacks
+ * chained together at this level. <br>
+ * On a JVM that has virtual threads, these are virtual, so they're cheap enough to have one pair per connection even
+ * with thousands of connections. Otherwise they're ordinary daemon threads.
+ *
+ * @author Sam Thayer
+ */
+class BlockingTransport implements Transport {
+	/** Makes the threads that every blocking transport runs on */
+	private static final ThreadFactory threadFactory = makeThreadFactory();
+
+	/** The socket that this is a transport for */
+	private final SocketChannel channel;
+
+	/** A lock to prevent race conditions on the pending requests and closed */
+	private final Lock requestLock;
+
+	/** Signaled whenever a request is made, or the transport is closed */
+	private final Condition requestMade;
+
+	/** The address that the reading thread should connect to before it starts reading, or null if it's connected */
+	private InetSocketAddress connectAddress;
+
+	/** The connection that is waiting for a read to start, or null if there isn't one */
+	private NetworkConnection readConnection;
+
+	/** The buffer that the next read should store its data in */
+	private ByteBuffer readBuffer;
+
+	/** The connection that is waiting for a write to start, or null if there isn't one */
+	private NetworkConnection writeConnection;
+
+	/** The messages that the next write should send */
+	private ByteBuffer[] writeMessages;
+
+	/** The number of meaningful entries in writeMessages */
+	private int writeCount;
+
+	/** True if the writing thread has been started */
+	private boolean writerStarted;
+
+	/** True once the transport has been closed */
+	private boolean closed;
+
+	/**
+	 * Makes a transport for a socket that isn't connected yet, set up the way the given configuration says
+	 */
+	BlockingTransport(NetworkConfiguration configuration) throws IOException {
+		this(SocketChannel.open());
+		configuration.configureConnection(channel);
+	}
+
+	/**
+	 * Makes a transport for the given socket, which is already connected and set up
+	 */
+	BlockingTransport(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.requestLock = new ReentrantLock();
+		this.requestMade = requestLock.newCondition();
+		channel.configureBlocking(true);
+
+		if (channel.isConnected()) {
+			startThread(new reader(), "Petroglyph connection reader");
+		}
+	}
+
+	@Override
+	public void connect(InetSocketAddress address, NetworkConnection connection) {
+		// The reading thread connects first, and then reports back the same way it will for reads
+		requestLock.lock();
+		connectAddress = address;
+		readConnection = connection;
+		requestLock.unlock();
+
+		startThread(new reader(), "Petroglyph connection reader");
+	}
+
+	@Override
+	public void read(ByteBuffer buffer, NetworkConnection connection) {
+		requestLock.lock();
+		readBuffer = buffer;
+		readConnection = connection;
+		requestMade.signalAll();
+		requestLock.unlock();
+	}
+
+	@Override
+	public void write(ByteBuffer[] messages, int count, NetworkConnection connection) {
+		requestLock.lock();
+		writeMessages = messages;
+		writeCount = count;
+		writeConnection = connection;
+		requestMade.signalAll();
+
+		// Plenty of connections never send anything, so they don't need a thread for it until they do
+		boolean startWriter = !writerStarted;
+		writerStarted = true;
+		requestLock.unlock();
+
+		if (startWriter) {
+			startThread(new writer(), "Petroglyph connection writer");
+		}
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() throws IOException {
+		return (InetSocketAddress) channel.getRemoteAddress();
+	}
+
+	@Override
+	public void close() {
+		requestLock.lock();
+		closed = true;
+		requestMade.signalAll();
+		requestLock.unlock();
+
+		try {
+			// This also wakes up any thread that is blocked reading or writing
+			channel.close();
+		} catch (IOException e) {
+			// This might be a bad choice, but let's just ignore the exception. If it won't
+			// let me close the socket there's not much I can do.
+		}
+	}
+
+	/** Does the connecting and reading for a transport */
+	private class reader implements Runnable {
+		@Override
+		public void run() {
+			if (!connect()) {
+				return;
+			}
+
+			while (true) {
+				NetworkConnection connection;
+				ByteBuffer buffer;
+
+				requestLock.lock();
+				try {
+					while (readConnection == null && !closed) {
+						requestMade.awaitUninterruptibly();
+					}
+					connection = readConnection;
+					buffer = readBuffer;
+					readConnection = null;
+					readBuffer = null;
+				} finally {
+					requestLock.unlock();
+				}
+
+				if (connection == null) {
+					// Closed while nobody was reading, so there's nothing to report
+					return;
+				}
+
+				int result;
+				try {
+					result = channel.read(buffer);
+				} catch (IOException e) {
+					NetworkingLibrary.readFailed(connection);
+					return;
+				}
+
+				// This usually asks for the next read before it returns, which this thread then picks right up
+				NetworkingLibrary.readCompleted(connection, result);
+				if (result == -1) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Connects, if this transport was asked to. Returns false if that failed.
+		 */
+		private boolean connect() {
+			requestLock.lock();
+			InetSocketAddress address = connectAddress;
+			NetworkConnection connection = null;
+			if (address != null) {
+				// Otherwise readConnection is a read that was asked for before this thread got going
+				connection = readConnection;
+				connectAddress = null;
+				readConnection = null;
+			}
+			requestLock.unlock();
+
+			if (address == null) {
+				return true;
+			}
+
+			try {
+				channel.connect(address);
+			} catch (IOException e) {
+				NetworkingLibrary.connectFailed(connection);
+				return false;
+			}
+			NetworkingLibrary.connectCompleted(connection);
+			return true;
+		}
+	}
+
+	/** Does the writing for a transport */
+	private class writer implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				NetworkConnection connection;
+				ByteBuffer[] messages;
+				int count;
+
+				requestLock.lock();
+				try {
+					while (writeConnection == null && !closed) {
+						requestMade.awaitUninterruptibly();
+					}
+					connection = writeConnection;
+					messages = writeMessages;
+					count = writeCount;
+					writeConnection = null;
+					writeMessages = null;
+				} finally {
+					requestLock.unlock();
+				}
+
+				if (connection == null) {
+					return;
+				}
+
+				try {
+					// A blocking write doesn't return until everything has been sent, unless the socket fails
+					channel.write(messages, 0, count);
+				} catch (IOException e) {
+					NetworkingLibrary.writeFailed(connection);
+					return;
+				}
+
+				// If more was queued in the meantime, this asks for the next write before it returns
+				NetworkingLibrary.writeCompleted(connection);
+			}
+		}
+	}
+
+	/**
+	 * A helper method that starts running the given task on a thread of its own
+	 */
+	private static void startThread(Runnable task, String name) {
+		Thread thread = threadFactory.newThread(task);
+		thread.setName(name);
+		thread.start();
+	}
+
+	/**
+	 * A helper method that returns a factory for virtual threads if this JVM has them, or daemon threads if it doesn't.
+	 * Virtual threads are found by reflection, since they don't exist in every version of Java that this runs on.
+	 */
+	private static ThreadFactory makeThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			// No virtual threads, so use ordinary ones
+		}
+
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,70 @@
+package controller;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of direct {@link ByteBuffer}s that are all the same size. Connections borrow a buffer when they
+ * open and give it back when they close, so opening and closing connections doesn't keep allocating direct memory.
+ *
+ * @author Sam Thayer
+ */
+class BufferPool {
+	/** The buffers that aren't currently borrowed */
+	private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+
+	/** The number of buffers in freeBuffers */
+	private final AtomicInteger freeCount;
+
+	/** The capacity of every buffer in this pool */
+	private final int bufferSize;
+
+	/** The most buffers that this pool will hold on to. Any more are left for the garbage collector. */
+	private final int maxFreeBuffers;
+
+	/**
+	 * Creates an empty BufferPool. Buffers are allocated as they are needed.
+	 *
+	 * @param bufferSize
+	 *            The capacity of every buffer in this pool
+	 * @param maxFreeBuffers
+	 *            The most buffers that this pool will hold on to while they aren't borrowed
+	 */
+	BufferPool(int bufferSize, int maxFreeBuffers) {
+		this.freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.freeCount = new AtomicInteger(0);
+		this.bufferSize = bufferSize;
+		this.maxFreeBuffers = maxFreeBuffers;
+	}
+
+	/**
+	 * Returns an empty direct buffer from this pool, allocating one if none are available.
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = freeBuffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		freeCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to this pool. Buffers that didn't come from this pool are ignored, as are any buffers past
+	 * maxFreeBuffers. The caller must not use the buffer again after calling this.
+	 */
+	void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+
+		if (freeCount.incrementAndGet() <= maxFreeBuffers) {
+			freeBuffers.offer(buffer);
+		} else {
+			freeCount.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package controller;
+
+import java.awt.Color;
+import java.util.ArrayList;
+
+import model.Caveman;
+import model.Hitbox;
+import model.SimpleParticipant;
+import model.SnapshotCodec;
+import model.Participant.Direction;
+
+/**
+ * Predicts where a client's own caveman is, so that it moves as soon as a key is pressed instead of a whole round trip
+ * later. The prediction runs the same Caveman.move() that the server does, one step per tick, and it runs ahead to the
+ * first tick that a key pressed right now could be processed on once it reaches the server. Each key press is sent as
+ * an {@link InputCommand} for that tick, and processed in the prediction on the same tick. <br>
+ * Each frame from the server says which of our inputs had been processed by then. Whenever one arrives, the prediction
+ * starts over from where the frame says the caveman was, with the keys the server had processed, and replays every
+ * input that hasn't been processed yet on top of that. If the prediction was right, this changes nothing. Otherwise, to
+ * keep the caveman from jumping on screen, the difference is added to an offset that's drawn on top of the prediction
+ * and fades away over the next few frames. <br>
+ * The server may take several smaller steps per tick if its game runs faster than it sends frames, but since inputs
+ * are only processed on tick boundaries and cavemen move in straight lines, that ends up in the same place. <br>
+ * Everything else, including whether the caveman has been knocked out, comes from the server.
+ *
+ * @author Sam Thayer
+ */
+class CavemanPredictor {
+	/** The most ticks to predict at once. If the prediction falls further behind than this, it skips ahead. */
+	private static final int MAX_STEPS = Server.FRAME_HISTORY_LENGTH / 2;
+
+	/** The time that a caveman's speed is measured over */
+	private static final long STANDARD_FRAME_LENGTH = 1000000000L / GameEngine.DEFAULT_TICKS_PER_SECOND;
+
+	/** The most inputs to wait on. Any more than this and the server isn't answering, so the oldest are given up on. */
+	private static final int MAX_PENDING_INPUTS = 256;
+
+	/** The time it takes for half of a correction to fade away */
+	private static final double CORRECTION_HALF_LIFE = 50 * 1000000.0;
+
+	/** The smallest offset worth drawing. Anything smaller is less than frames can even show, so it's dropped. */
+	private static final double MIN_OFFSET = 1.0 / SnapshotCodec.COORDINATE_SCALE;
+
+	/** How far apart, in the same units as hitboxes, a held spear can be from where it should be and still count as held */
+	private static final double HELD_SPEAR_TOLERANCE = 2.0 / SnapshotCodec.COORDINATE_SCALE;
+
+	/** Maps the server's ticks onto our clock */
+	private final ServerClock serverClock;
+
+	/** Knows the round trip time to the server */
+	private final HeartbeatMonitor heartbeat;
+
+	/** The number of the caveman being predicted, or -1 if the server hasn't said yet */
+	private int playerNumber;
+
+	/** The predicted caveman, or null until a frame has arrived to start predicting from */
+	private Caveman caveman;
+
+	/** The tick that caveman is predicted for */
+	private int predictedTick;
+
+	/** The inputs that have been sent but that the server hasn't processed yet, oldest first */
+	private final ArrayList<InputCommand> pendingInputs;
+
+	/** The number of inputs at the start of pendingInputs that the prediction has processed */
+	private int predictedInputs;
+
+	/** The keys as the server has them, after every input it has processed */
+	private final keyState processedKeys;
+
+	/** The keys as the prediction has them */
+	private final keyState predictedKeys;
+
+	/** The sequence number for the next input */
+	private int nextSequence;
+
+	/** The tick of the newest input, so that inputs are never processed out of order */
+	private int lastInputTick;
+
+	/** How far from the prediction the caveman is drawn, horizontally. This fades to 0 after each correction. */
+	private double offsetX;
+
+	/** How far from the prediction the caveman is drawn, vertically. This fades to 0 after each correction. */
+	private double offsetY;
+
+	/** The local time that the caveman was last drawn */
+	private long lastDrawTime;
+
+	/**
+	 * Makes a predictor that uses the given clock and round trip time to work out which tick it's predicting. It doesn't
+	 * predict anything until it knows which caveman is ours.
+	 */
+	CavemanPredictor(ServerClock serverClock, HeartbeatMonitor heartbeat) {
+		this.serverClock = serverClock;
+		this.heartbeat = heartbeat;
+		this.playerNumber = -1;
+		this.caveman = null;
+		this.pendingInputs = new ArrayList<InputCommand>();
+		this.predictedInputs = 0;
+		this.processedKeys = new keyState();
+		this.predictedKeys = new keyState();
+		this.nextSequence = 1;
+		this.lastInputTick = 0;
+		this.offsetX = 0;
+		this.offsetY = 0;
+		this.lastDrawTime = 0;
+	}
+
+	/**
+	 * Sets which caveman is ours
+	 */
+	synchronized void setPlayerNumber(int playerNumber) {
+		if (playerNumber != this.playerNumber) {
+			this.playerNumber = playerNumber;
+			reset();
+		}
+	}
+
+	/**
+	 * Forgets the prediction, so it starts over from the next frame. This should be called when a round starts, since
+	 * everybody goes back to where they started. The server doesn't forget which keys are pressed between rounds, but
+	 * the new caveman isn't moving until a key changes, so neither are we.
+	 */
+	synchronized void reset() {
+		caveman = null;
+		processedKeys.direction = null;
+		processedKeys.moving = false;
+		offsetX = 0;
+		offsetY = 0;
+	}
+
+	/**
+	 * Returns an input for the player starting to press the given direction at the given time
+	 */
+	synchronized InputCommand beginMovement(Direction direction, long now) {
+		return newInput(Server.BEGIN_MOVEMENT_KEY, direction, -1, now);
+	}
+
+	/**
+	 * Returns an input for the player stopping pressing the given direction at the given time
+	 */
+	synchronized InputCommand endMovement(Direction direction, long now) {
+		return newInput(Server.END_MOVEMENT_KEY, direction, -1, now);
+	}
+
+	/**
+	 * Returns an input for the player throwing their spear at the given time, while seeing the given tick. That isn't
+	 * predicted, but it's numbered along with every other input.
+	 */
+	synchronized InputCommand throwSpear(long now, int viewTick) {
+		return newInput(Server.THROW_SPEAR_KEY, null, viewTick, now);
+	}
+
+	/**
+	 * Starts the prediction over from the server's frame for the given tick, given the sequence number of each
+	 * caveman's newest processed input
+	 */
+	synchronized void frameReceived(int tick, SimpleParticipant[] participants, int[] processedSequences) {
+		if (playerNumber < 0 || playerNumber >= processedSequences.length || 1 + playerNumber >= participants.length) {
+			return;
+		}
+
+		// The server has caught up on these, so they're part of the frame already
+		while (!pendingInputs.isEmpty() && pendingInputs.get(0).sequence <= processedSequences[playerNumber]) {
+			processedKeys.process(pendingInputs.remove(0));
+		}
+
+		boolean wasPredicting = caveman != null;
+		double oldX = wasPredicting ? caveman.getX() : 0;
+		double oldY = wasPredicting ? caveman.getY() : 0;
+		int targetTick = wasPredicting ? Math.max(tick, predictedTick) : tick;
+
+		SimpleParticipant actual = participants[1 + playerNumber];
+		caveman = new Caveman(actual.getHitbox().leftX, actual.getHitbox().topY, actual.getColor());
+		// Each step covers one of the server's ticks, however long those are
+		caveman.setTimeScale(serverClock.getTickLength() / (double) STANDARD_FRAME_LENGTH);
+		caveman.setDirection(actual.getDirection());
+		caveman.setMoving(processedKeys.moving);
+		caveman.setConscious(actual.isConscious());
+		predictedKeys.copy(processedKeys);
+		predictedTick = tick;
+		predictedInputs = 0;
+		stepTo(targetTick);
+
+		if (wasPredicting) {
+			double errorX = caveman.getX() - oldX;
+			double errorY = caveman.getY() - oldY;
+			if (Math.abs(errorX) > SimpleParticipant.MAX_INTERPOLATED_DISTANCE || Math.abs(errorY) > SimpleParticipant.MAX_INTERPOLATED_DISTANCE) {
+				// The caveman jumped, which isn't something to smooth over
+				offsetX = 0;
+				offsetY = 0;
+			} else {
+				offsetX -= errorX;
+				offsetY -= errorY;
+			}
+		}
+	}
+
+	/**
+	 * Returns the given frame with our caveman, and his spear if he's holding it, moved to where they're predicted to be
+	 * at the given time. Returns the frame itself if there's no prediction.
+	 */
+	synchronized SimpleParticipant[] predict(SimpleParticipant[] participants, long now) {
+		if (caveman == null || 1 + playerNumber >= participants.length || !serverClock.isSynchronized()) {
+			return participants;
+		}
+
+		advance(now);
+		double fade = lastDrawTime == 0 ? 1 : Math.pow(0.5, (now - lastDrawTime) / CORRECTION_HALF_LIFE);
+		offsetX = Math.abs(offsetX) < MIN_OFFSET ? 0 : offsetX * fade;
+		offsetY = Math.abs(offsetY) < MIN_OFFSET ? 0 : offsetY * fade;
+		lastDrawTime = now;
+
+		int cavemanIndex = 1 + playerNumber;
+		int spearIndex = cavemanIndex + (participants.length - 1) / 2;
+		SimpleParticipant shown = participants[cavemanIndex];
+
+		SimpleParticipant[] predicted = participants.clone();
+		Caveman drawn = holding(caveman.getX() + offsetX, caveman.getY() + offsetY, caveman.getDirection(), shown.getColor());
+		drawn.setConscious(shown.isConscious());
+		predicted[cavemanIndex] = new SimpleParticipant(drawn);
+
+		if (spearIndex < participants.length && isHeld(participants[spearIndex], shown)) {
+			predicted[spearIndex] = new SimpleParticipant(drawn.getSpear());
+		}
+		return predicted;
+	}
+
+	/**
+	 * Returns true once there's a prediction to draw
+	 */
+	synchronized boolean isPredicting() {
+		return caveman != null && serverClock.isSynchronized();
+	}
+
+	/**
+	 * Numbers a new input, stamps it with the first tick it can be processed on, and remembers it until the server
+	 * processes it
+	 */
+	private InputCommand newInput(String key, Direction direction, int viewTick, long now) {
+		int tick = serverClock.isSynchronized() ? arrivalTick(now) : 0;
+		// Inputs have to be processed in order, and the prediction can't go back and process one it has already passed
+		tick = Math.max(tick, lastInputTick);
+		if (caveman != null) {
+			tick = Math.max(tick, predictedTick + 1);
+		}
+		lastInputTick = tick;
+
+		InputCommand input = new InputCommand(key, direction, nextSequence++, tick, viewTick);
+		pendingInputs.add(input);
+		if (pendingInputs.size() > MAX_PENDING_INPUTS) {
+			processedKeys.process(pendingInputs.remove(0));
+			predictedInputs = Math.max(predictedInputs - 1, 0);
+		}
+		return input;
+	}
+
+	/**
+	 * Returns the first tick that an input sent at the given time can be processed on. The server processes inputs right
+	 * after making each frame, ready for the next one, so that's the tick after the first frame made once it arrives.
+	 */
+	private int arrivalTick(long now) {
+		long oneWay = (long) (heartbeat.getRoundTripTime() * 1000000.0 / 2);
+		return (int) Math.ceil(serverClock.tickAt(now + oneWay)) + 1;
+	}
+
+	/**
+	 * Predicts forward to the first tick that a key pressed at the given time could be processed on
+	 */
+	private void advance(long now) {
+		int targetTick = arrivalTick(now);
+		if (targetTick - predictedTick > MAX_STEPS) {
+			// We can't have been running for that long, so don't try to catch up on all of it
+			predictedTick = targetTick - MAX_STEPS;
+		}
+		stepTo(targetTick);
+	}
+
+	/**
+	 * Predicts forward to the given tick, processing each input before the tick it's for, just like the server does
+	 */
+	private void stepTo(int targetTick) {
+		while (predictedTick < targetTick) {
+			predictedTick++;
+			while (predictedInputs < pendingInputs.size() && pendingInputs.get(predictedInputs).tick <= predictedTick) {
+				if (predictedKeys.process(pendingInputs.get(predictedInputs))) {
+					caveman.setDirection(predictedKeys.direction);
+					caveman.setMoving(predictedKeys.moving);
+				}
+				predictedInputs++;
+			}
+			caveman.move();
+		}
+	}
+
+	/**
+	 * Returns true if the given spear is where it would be if the given caveman was holding it
+	 */
+	private static boolean isHeld(SimpleParticipant spear, SimpleParticipant owner) {
+		Hitbox held = holding(owner.getHitbox().leftX, owner.getHitbox().topY, owner.getDirection(), owner.getColor()).getSpear()
+				.getHitbox();
+		return spear.getDirection() == owner.getDirection() && Math.abs(spear.getHitbox().leftX - held.leftX) <= HELD_SPEAR_TOLERANCE
+				&& Math.abs(spear.getHitbox().topY - held.topY) <= HELD_SPEAR_TOLERANCE;
+	}
+
+	/**
+	 * Returns a caveman standing at the given place, holding his spear the way Caveman.move() puts it
+	 */
+	private static Caveman holding(double x, double y, Direction direction, Color color) {
+		Caveman caveman = new Caveman(x, y, color);
+		caveman.setDirection(direction);
+		// He isn't moving, so this only puts the spear in his hands
+		caveman.move();
+		return caveman;
+	}
+
+	/**
+	 * The directions that a player is pressing, and how that has the caveman moving, kept the same way GameEngine keeps
+	 * them
+	 *
+	 * @author Sam Thayer
+	 */
+	private static class keyState {
+		/** The directions being pressed, most recent first */
+		private final ArrayList<Direction> pressed = new ArrayList<Direction>();
+
+		/** The direction the keys last turned the caveman, or null if they haven't since the round started */
+		private Direction direction;
+
+		/** Whether the keys have the caveman moving */
+		private boolean moving;
+
+		/**
+		 * Processes the given input. Returns true if it changed which way the caveman is facing or whether he's moving.
+		 */
+		boolean process(InputCommand input) {
+			if (!input.isMovement()) {
+				return false;
+			}
+
+			if (input.key.equals(Server.BEGIN_MOVEMENT_KEY)) {
+				if (pressed.contains(input.direction)) {
+					return false;
+				}
+				pressed.add(0, input.direction);
+				direct(input.direction, true);
+				return true;
+			}
+
+			if (!pressed.remove(input.direction)) {
+				return false;
+			}
+			if (pressed.isEmpty()) {
+				direct(input.direction, false);
+			} else {
+				direct(pressed.get(0), true);
+			}
+			return true;
+		}
+
+		/**
+		 * Makes this the same as the given state
+		 */
+		void copy(keyState other) {
+			pressed.clear();
+			pressed.addAll(other.pressed);
+			direction = other.direction;
+			moving = other.moving;
+		}
+
+		/**
+		 * Turns and starts or stops the caveman, like Model.directCaveman()
+		 */
+		private void direct(Direction direction, boolean moving) {
+			this.direction = direction;
+			this.moving = moving;
+		}
+	}
+}
@@ -1,12 +1,23 @@
 package controller;
 
+import controller.NetworkingLibrary.MessagePriority;
+import controller.NetworkingLibrary.NetworkBinaryUpdateHandler;
 import controller.NetworkingLibrary.NetworkConnectionHandler;
+import controller.NetworkingLibrary.NetworkDatagramEndpoint;
+import controller.NetworkingLibrary.NetworkDatagramHandler;
 import controller.NetworkingLibrary.NetworkUpdateHandler;
 import model.SimpleParticipant;
+import model.SnapshotCodec;
 import model.Participant.Direction;
 import view.PetroglyphWindow;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import controller.NetworkingLibrary.NetworkConnection;
 
@@ -17,7 +28,7 @@ import controller.NetworkingLibrary.NetworkConnection;
  * 
  * @author Sam Thayer
  */
-public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
+public class Client implements NetworkConnectionHandler, NetworkUpdateHandler, NetworkBinaryUpdateHandler, NetworkDatagramHandler {
 	/** The connection to the server */
 	private NetworkConnection connection;
 
@@ -33,38 +44,134 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 	/** Whether the game is running or not */
 	private boolean gameIsActive;
 
+	/** The last FRAME_HISTORY_LENGTH binary frames received, indexed by frame number modulo the length */
+	private SimpleParticipant[][] receivedFrames;
+
+	/** The frame number of each frame in receivedFrames */
+	private int[] receivedFrameNumbers;
+
+	/** The number of the newest frame that has been passed on to the view */
+	private int newestFrameNumber;
+
+	/** Whether to accept the server's offer to send frames as datagrams */
+	private boolean datagramsEnabled;
+
+	/** The endpoint that frames arrive on as datagrams, or null if the server hasn't offered them */
+	private NetworkDatagramEndpoint datagramEndpoint;
+
+	/** The address that the server sends datagrams from */
+	private InetSocketAddress serverDatagramAddress;
+
+	/** The DATAGRAM_REGISTER message to send until datagrams start arriving, or null once they have */
+	private ByteBuffer datagramRegistration;
+
+	/** The number of DATAGRAM_REGISTER messages that have been sent */
+	private int registrationAttempts;
+
+	/** The most DATAGRAM_REGISTER messages to send before deciding that datagrams can't get through */
+	private static final int MAX_REGISTRATION_ATTEMPTS = Server.FRAME_HISTORY_LENGTH;
+
+	/** How healthy the connection to the server is */
+	private HeartbeatMonitor heartbeat;
+
+	/** Maps the server's ticks and clock onto ours */
+	private ServerClock serverClock;
+
+	/** Sends PING messages, and checks whether the server has gone quiet. This is null until the server is heard from. */
+	private Timer heartbeatTimer;
+
+	/** Predicts where our own caveman is, so he moves as soon as a key is pressed */
+	private CavemanPredictor predictor;
+
+	/** The frames that have arrived, waiting to be drawn a little in the past so that they can be drawn smoothly */
+	private InterpolationBuffer interpolationBuffer;
+
+	/** Draws frames out of interpolationBuffer. This is null until the first binary frame arrives. */
+	private Timer renderTimer;
+
+	/** The time between drawing frames out of interpolationBuffer, if the view doesn't say how often it wants them */
+	private static final int DEFAULT_RENDER_INTERVAL_MILLIS = GameEngine.MILLIES_PER_FRAME;
+
+	/** True once this Client has been closed, so that losing the server is only handled once */
+	private boolean isClosed;
+
 	/**
 	 * Makes a Client that will immediately try to connect with a server at remoteIP.
 	 */
 	public Client(PetroglyphWindow window, MainController controller, String remoteIP) {
+		this(window, controller, remoteIP, new NetworkConfiguration());
+	}
+
+	/**
+	 * Makes a Client that will immediately try to connect with a server at remoteIP, on the port and with the socket
+	 * options and threads that the given configuration says.
+	 */
+	public Client(PetroglyphWindow window, MainController controller, String remoteIP, NetworkConfiguration configuration) {
 		this.window = window;
 		this.controller = controller;
 		this.gameIsActive = false;
-		NetworkingLibrary.connectToServer(this, remoteIP, Server.MESSAGE_TERMINATOR);
+		this.receivedFrames = new SimpleParticipant[Server.FRAME_HISTORY_LENGTH][];
+		this.receivedFrameNumbers = new int[Server.FRAME_HISTORY_LENGTH];
+		Arrays.fill(receivedFrameNumbers, Server.NO_BASELINE);
+		this.newestFrameNumber = Server.NO_BASELINE;
+		this.heartbeat = new HeartbeatMonitor();
+		setServerFrameRate(GameEngine.DEFAULT_TICKS_PER_SECOND);
+		this.isClosed = false;
+		this.datagramsEnabled = configuration.isDatagramsEnabled();
+		NetworkingLibrary.connectToServer(this, remoteIP, Server.MESSAGE_TERMINATOR, configuration);
 	}
 
 	/**
 	 * Closes the connection to the server.
 	 */
-	public void close() {
+	public synchronized void close() {
+		isClosed = true;
+		if (heartbeatTimer != null) {
+			heartbeatTimer.cancel();
+		}
+		if (renderTimer != null) {
+			renderTimer.cancel();
+		}
 		NetworkingLibrary.closeConnection(connection);
+		if (datagramEndpoint != null) {
+			NetworkingLibrary.closeDatagramEndpoint(datagramEndpoint);
+		}
 	}
 
 	@Override
 	public void connectionUpdate(NetworkConnection connection, boolean success, String message) {
 		if (!success) {
 			// If the server disconnected
-			controller.lostConnection();
+			lostServer();
 			return;
 		}
 
-		if (!gameIsActive) {
-			// If this is the first message received, then the game is just starting up
-			gameIsActive = true;
-			controller.startGameAsClient();
-			view = window.readyToLaunchAsClient();
+		if (message.startsWith(Server.CODEC_ACCEPT_KEY + Server.BINARY_FORMAT_VERSION + Server.FIELD_SEPERATOR)) {
+			int framesPerSecond;
+			try {
+				framesPerSecond = Integer.parseInt(message.substring((Server.CODEC_ACCEPT_KEY + Server.BINARY_FORMAT_VERSION).length() + 1));
+			} catch (NumberFormatException e) {
+				// The server has switched formats either way, so the best we can do is guess it sends the usual rate
+				framesPerSecond = GameEngine.DEFAULT_TICKS_PER_SECOND;
+			}
+
+			// The server agreed to use the binary format, starting with the next message
+			setServerFrameRate(framesPerSecond > 0 ? framesPerSecond : GameEngine.DEFAULT_TICKS_PER_SECOND);
+			NetworkingLibrary.useLengthPrefixedFraming(connection);
+			heardFromServer();
+			NetworkingLibrary.getBinaryData(connection, this);
+			return;
 		}
 
+		// Whatever the first message is, the server has settled on the text format
+		heardFromServer();
+		if (heartbeatMessage(message)) {
+			NetworkingLibrary.getData(connection, this);
+			return;
+		}
+
+		startGameIfNeeded();
+
 		// Even if this is the first message, it still has valid data:
 		newMessage(message);
 		// Ignore the return value. As per the Petroglyph protocol, malformed messages
@@ -72,6 +179,308 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 		NetworkingLibrary.getData(connection, this);
 	}
 
+	@Override
+	public void binaryConnectionUpdate(NetworkConnection connection, boolean success, ByteBuffer message) {
+		if (!success) {
+			// If the server disconnected
+			lostServer();
+			return;
+		}
+
+		heardFromServer();
+		if (message.hasRemaining() && message.get(message.position()) == Server.NEW_FRAME_KEY.charAt(0)) {
+			startGameIfNeeded();
+			newFrame(message);
+			// If the server is still sending frames this way, it hasn't heard us register for datagrams yet
+			sendDatagramRegistration();
+		} else {
+			// Every other message is the same text as ever
+			String text = StandardCharsets.UTF_8.decode(message).toString();
+			if (text.startsWith(Server.DATAGRAM_OFFER_KEY)) {
+				// This comes before the game starts, so it mustn't start it
+				acceptDatagramOffer(text.substring(Server.MESSAGE_KEY_LENGTH));
+			} else if (text.startsWith(Server.PLAYER_ASSIGNMENT_KEY)) {
+				// This comes right before the round starts, so leave that to START_ROUND
+				acceptPlayerAssignment(text.substring(Server.MESSAGE_KEY_LENGTH));
+			} else if (!heartbeatMessage(text)) {
+				startGameIfNeeded();
+				newMessage(text);
+			}
+		}
+		NetworkingLibrary.getBinaryData(connection, this);
+	}
+
+	@Override
+	public void datagramUpdate(NetworkDatagramEndpoint endpoint, InetSocketAddress source, ByteBuffer message) {
+		// The server only sends frames this way, and nobody else should be sending anything
+		if (!gameIsActive || !source.equals(serverDatagramAddress) || !message.hasRemaining()
+				|| message.get(message.position()) != Server.NEW_FRAME_KEY.charAt(0)) {
+			return;
+		}
+
+		if (newFrame(message)) {
+			datagramRegistration = null;
+			heartbeat.heardFrom();
+		}
+	}
+
+	/**
+	 * Accepts the server's offer to send frames as datagrams. Returns false if the offer was malformed.
+	 */
+	private boolean acceptDatagramOffer(String offer) {
+		if (datagramEndpoint != null || !datagramsEnabled) {
+			// We only need one, and we may not want any
+			return false;
+		}
+
+		int port;
+		String token;
+		try {
+			int separator = offer.indexOf(Server.FIELD_SEPERATOR);
+			port = Integer.parseInt(offer.substring(0, separator));
+			token = offer.substring(separator + 1);
+			Long.parseLong(token);
+		} catch (Exception e) {
+			// If anything goes wrong, it was an invalid message
+			return false;
+		}
+
+		InetSocketAddress server = NetworkingLibrary.getRemoteAddress(connection);
+		if (server == null) {
+			return false;
+		}
+
+		datagramEndpoint = NetworkingLibrary.openDatagramEndpoint(this, 0);
+		if (datagramEndpoint == null) {
+			// Frames will just keep coming over the connection
+			return false;
+		}
+
+		serverDatagramAddress = new InetSocketAddress(server.getAddress(), port);
+		NetworkingLibrary.addDatagramPeer(datagramEndpoint, serverDatagramAddress);
+		datagramRegistration = ByteBuffer.wrap((Server.DATAGRAM_REGISTER_KEY + token).getBytes(StandardCharsets.UTF_8));
+		registrationAttempts = 0;
+		sendDatagramRegistration();
+		return true;
+	}
+
+	/**
+	 * Starts predicting the caveman that the server says is ours. Returns false if the assignment was malformed.
+	 */
+	private boolean acceptPlayerAssignment(String assignment) {
+		try {
+			predictor.setPlayerNumber(Integer.parseInt(assignment));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tells the server where to send datagrams, if it might not know yet
+	 */
+	private void sendDatagramRegistration() {
+		ByteBuffer registration = datagramRegistration;
+		if (registration == null || registrationAttempts >= MAX_REGISTRATION_ATTEMPTS) {
+			return;
+		}
+
+		registrationAttempts++;
+		NetworkingLibrary.sendDatagram(datagramEndpoint, serverDatagramAddress, registration);
+	}
+
+	/**
+	 * Notes that the server is still there. The first time it's heard from, the format has been settled, so we can start
+	 * sending it PING messages if it's the binary format. A server that only speaks text may not answer them.
+	 */
+	private synchronized void heardFromServer() {
+		heartbeat.heardFrom();
+		if (heartbeatTimer == null && !isClosed && NetworkingLibrary.isLengthPrefixed(connection)) {
+			heartbeatTimer = new Timer("Petroglyph client heartbeat", true);
+			heartbeatTimer.schedule(new pinger(), 0, Server.PING_INTERVAL_MILLIS);
+		}
+	}
+
+	/**
+	 * If the given message is a PING or PONG, handles it and returns true. Otherwise returns false. These never start the
+	 * game, since the server sends them while it's waiting for other clients.
+	 */
+	private boolean heartbeatMessage(String message) {
+		try {
+			if (message.startsWith(Server.PING_KEY)) {
+				String sentAt = message.substring(Server.MESSAGE_KEY_LENGTH);
+				Long.parseLong(sentAt);
+				NetworkingLibrary.send(connection, Server.PONG_KEY + sentAt + Server.FIELD_SEPERATOR + System.nanoTime(),
+						MessagePriority.urgent);
+				return true;
+			}
+			if (message.startsWith(Server.PONG_KEY)) {
+				int separator = message.indexOf(Server.FIELD_SEPERATOR);
+				long sentAt = Long.parseLong(message.substring(Server.MESSAGE_KEY_LENGTH, separator));
+				long serverTime = Long.parseLong(message.substring(separator + 1));
+				if (heartbeat.pongReceived(sentAt)) {
+					serverClock.pongReceived(sentAt, serverTime);
+				}
+				return true;
+			}
+		} catch (RuntimeException e) {
+			// A malformed PING or PONG is still one, and is ignored like any other malformed message
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Closes everything after the connection to the server fails or goes quiet, and lets the MainController know
+	 */
+	private void lostServer() {
+		// The heartbeat may notice the server is gone at the same time as the connection does
+		synchronized (this) {
+			if (isClosed) {
+				return;
+			}
+			close();
+		}
+		controller.lostConnection();
+	}
+
+	/**
+	 * Returns the smoothed round trip time to the server, in milliseconds, or 0 if the server hasn't answered a PING yet
+	 */
+	public double getRoundTripTime() {
+		return heartbeat.getRoundTripTime();
+	}
+
+	/**
+	 * Returns how far the round trip time to the server usually strays from the smoothed one, in milliseconds, or 0 if
+	 * the server hasn't answered a PING yet
+	 */
+	public double getJitter() {
+		return heartbeat.getJitter();
+	}
+
+	/**
+	 * Returns this client's estimate of the server's clock, which can say when any of the server's ticks happened here.
+	 * It only knows about ticks once binary frames start arriving.
+	 */
+	public ServerClock getServerClock() {
+		return serverClock;
+	}
+
+	/**
+	 * Returns how far in the past frames are being drawn, in milliseconds, so that late frames still arrive in time to be
+	 * drawn. This adapts to how much the time frames take to arrive varies.
+	 */
+	public double getInterpolationDelay() {
+		return interpolationBuffer.getDelay();
+	}
+
+	/**
+	 * Returns how much the time frames take to arrive usually varies from one frame to the next, in milliseconds
+	 */
+	public double getFrameJitter() {
+		return interpolationBuffer.getJitter();
+	}
+
+	/**
+	 * Gets ready for frames from a server that sends the given number per second. This has to happen before any frames
+	 * arrive, since everything that keeps track of them starts over.
+	 */
+	private synchronized void setServerFrameRate(int framesPerSecond) {
+		serverClock = new ServerClock(framesPerSecond);
+		interpolationBuffer = new InterpolationBuffer(framesPerSecond);
+		predictor = new CavemanPredictor(serverClock, heartbeat);
+	}
+
+	/**
+	 * If this is the first message received, then the game is just starting up, so get it going
+	 */
+	private void startGameIfNeeded() {
+		if (!gameIsActive) {
+			gameIsActive = true;
+			controller.startGameAsClient();
+			view = window.readyToLaunchAsClient();
+		}
+	}
+
+	/**
+	 * Tries to parse the given NEW_FRAME message in the binary format. If it is valid, buffers the frame to be drawn,
+	 * acknowledges it, and returns true. Otherwise, returns false.
+	 */
+	private synchronized boolean newFrame(ByteBuffer message) {
+		long arrivalTime = System.nanoTime();
+		SimpleParticipant[] participants;
+		int frameNumber;
+		long frameTime;
+		int[] processedInputs;
+		try {
+			message.position(message.position() + Server.MESSAGE_KEY_LENGTH);
+			frameNumber = message.getInt();
+			int baseline = message.getInt();
+			frameTime = message.getLong();
+			processedInputs = new int[message.get() & 0xFF];
+			for (int i = 0; i < processedInputs.length; i++) {
+				processedInputs[i] = message.getInt();
+			}
+
+			if (frameNumber < 0) {
+				return false;
+			}
+
+			if (baseline == Server.NO_BASELINE) {
+				participants = SnapshotCodec.decode(message);
+			} else {
+				int index = baseline % Server.FRAME_HISTORY_LENGTH;
+				if (baseline < 0 || receivedFrameNumbers[index] != baseline) {
+					// We don't have the frame this is a delta against, so there's nothing to apply it to
+					return false;
+				}
+				participants = SnapshotCodec.decodeDelta(receivedFrames[index], message);
+			}
+		} catch (Exception e) {
+			// If anything goes wrong, it was an invalid message
+			return false;
+		}
+
+		// Frames can arrive as datagrams and over the connection at once, so only keep the newest
+		if (frameNumber <= newestFrameNumber) {
+			return false;
+		}
+		newestFrameNumber = frameNumber;
+		serverClock.tickReceived(frameNumber, frameTime);
+
+		int index = frameNumber % Server.FRAME_HISTORY_LENGTH;
+		receivedFrames[index] = participants;
+		receivedFrameNumbers[index] = frameNumber;
+		NetworkingLibrary.send(connection, Server.FRAME_ACK_KEY + frameNumber);
+
+		interpolationBuffer.add(frameNumber, frameTime, participants, arrivalTime);
+		predictor.frameReceived(frameNumber, participants, processedInputs);
+		if (renderTimer == null && !isClosed) {
+			// The view can be drawn as often as it likes, since frames are drawn partway between each other
+			int renderRate = view.getUpdateRate();
+			renderTimer = new Timer("Petroglyph client renderer", true);
+			renderTimer.scheduleAtFixedRate(new renderer(), 0, renderRate > 0 ? Math.max(1000 / renderRate, 1) : DEFAULT_RENDER_INTERVAL_MILLIS);
+		}
+		return true;
+	}
+
+	/**
+	 * Draws the round's last frame right away. The frame that decided the round shouldn't still be waiting in the buffer
+	 * when the view says how it ended.
+	 */
+	private void showLastFrame() {
+		if (renderTimer == null) {
+			// Frames are still going straight to the view
+			return;
+		}
+
+		SimpleParticipant[] participants = interpolationBuffer.skipToNewest();
+		if (participants != null) {
+			view.newFrame(participants);
+		}
+	}
+
 	/**
 	 * Tries to parse the given message. If it is a valid message, takes appropriate action and returns true. Otherwise,
 	 * returns false.
@@ -83,6 +492,8 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 
 			if (key.equals(Server.START_ROUND_KEY)) {
 				int roundNum = Integer.parseInt(message);
+				interpolationBuffer.clear();
+				predictor.reset();
 				view.startRound(roundNum);
 			}
 
@@ -99,10 +510,12 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 			}
 
 			else if (key.equals(Server.ROUND_WIN_KEY)) {
+				showLastFrame();
 				view.roundWin(null);
 			}
 
 			else if (key.equals(Server.ROUND_LOSS_KEY)) {
+				showLastFrame();
 				view.roundLoss();
 				close();
 			}
@@ -126,6 +539,8 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 		if (success) {
 			// If we connected, get ready for the game to start
 			this.connection = connection;
+			// Ask for the compact format. Until the server accepts, everything stays in the text format
+			NetworkingLibrary.send(connection, Server.CODEC_REQUEST_KEY + Server.BINARY_FORMAT_VERSION);
 			NetworkingLibrary.getData(connection, this);
 			window.connectedAsClient();
 		} else {
@@ -139,8 +554,14 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 	 */
 	public void tryThrowSpear() {
 		// Caveman can't do anything unless the game has started
-		if (gameIsActive)
-			NetworkingLibrary.send(connection, Server.THROW_SPEAR_KEY);
+		if (!gameIsActive)
+			return;
+
+		if (NetworkingLibrary.isLengthPrefixed(connection)) {
+			NetworkingLibrary.send(connection, predictor.throwSpear(System.nanoTime(), interpolationBuffer.getRenderTick()).toMessage(), MessagePriority.urgent);
+		} else {
+			NetworkingLibrary.send(connection, Server.THROW_SPEAR_KEY, MessagePriority.urgent);
+		}
 	}
 
 	/**
@@ -148,8 +569,14 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 	 */
 	public void beginMovement(Direction direction) {
 		// Caveman can't do anything unless the game has started
-		if (gameIsActive)
-			NetworkingLibrary.send(connection, Server.BEGIN_MOVEMENT_KEY + direction.toString());
+		if (!gameIsActive)
+			return;
+
+		if (NetworkingLibrary.isLengthPrefixed(connection)) {
+			NetworkingLibrary.send(connection, predictor.beginMovement(direction, System.nanoTime()).toMessage(), MessagePriority.urgent);
+		} else {
+			NetworkingLibrary.send(connection, Server.BEGIN_MOVEMENT_KEY + direction.toString(), MessagePriority.urgent);
+		}
 	}
 
 	/**
@@ -157,8 +584,47 @@ public class Client implements NetworkConnectionHandler, NetworkUpdateHandler {
 	 */
 	public void endMovement(Direction direction) {
 		// Caveman can't do anything unless the game has started
-		if (gameIsActive)
-			NetworkingLibrary.send(connection, Server.END_MOVEMENT_KEY + direction.toString());
+		if (!gameIsActive)
+			return;
+
+		if (NetworkingLibrary.isLengthPrefixed(connection)) {
+			NetworkingLibrary.send(connection, predictor.endMovement(direction, System.nanoTime()).toMessage(), MessagePriority.urgent);
+		} else {
+			NetworkingLibrary.send(connection, Server.END_MOVEMENT_KEY + direction.toString(), MessagePriority.urgent);
+		}
+	}
+
+	/**
+	 * Draws the frame that should be on screen right now, if it has changed. Our own caveman is drawn where he's
+	 * predicted to be, which can change even when the frame doesn't.
+	 * 
+	 * @author Sam Thayer
+	 */
+	private class renderer extends TimerTask {
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			SimpleParticipant[] participants = interpolationBuffer.sample(now, predictor.isPredicting());
+			if (participants != null) {
+				view.newFrame(predictor.predict(participants, now));
+			}
+		}
+	}
+
+	/**
+	 * Sends the server a PING, and gives up on it if it has been quiet for too long
+	 * 
+	 * @author Sam Thayer
+	 */
+	private class pinger extends TimerTask {
+		@Override
+		public void run() {
+			if (heartbeat.isTimedOut(Server.CONNECTION_TIMEOUT_MILLIS)) {
+				lostServer();
+				return;
+			}
+			NetworkingLibrary.send(connection, Server.PING_KEY + System.nanoTime(), MessagePriority.urgent);
+		}
 	}
 
 }
@@ -0,0 +1,176 @@
+package controller;
+
+/**
+ * A snapshot of how much traffic a {@link NetworkingLibrary.NetworkConnection} has handled, and how quickly. Get one with
+ * NetworkingLibrary.getStatistics(). <br>
+ * The counts start when the connection is made and only ever go up, so rates can be found by comparing two snapshots.
+ * Each number is read separately while the connection keeps going, so they may be very slightly out of step with each
+ * other. Times are in nanoseconds.
+ *
+ * @author Sam Thayer
+ */
+public class ConnectionStatistics {
+	/** The number of bytes that the socket has sent, including framing */
+	private final long bytesSent;
+
+	/** The number of messages that the socket has completely sent */
+	private final long messagesSent;
+
+	/** The number of bytes that the socket has received, including framing */
+	private final long bytesReceived;
+
+	/** The number of messages that have been handed to the connection's callback */
+	private final long messagesReceived;
+
+	/** The number of messages waiting to be sent when this snapshot was taken */
+	private final int queueDepth;
+
+	/** The most messages that have ever been waiting to be sent at once */
+	private final int peakQueueDepth;
+
+	/** The number of writes that the socket has finished */
+	private final long writesCompleted;
+
+	/** The total time that writes took to finish */
+	private final long totalWriteTime;
+
+	/** The longest time that a write took to finish */
+	private final long longestWriteTime;
+
+	/** The total time between data arriving and its messages being handed to the callback */
+	private final long totalDispatchDelay;
+
+	/** The longest time between data arriving and one of its messages being handed to the callback */
+	private final long longestDispatchDelay;
+
+	/** The size of the buffer that incoming data is framed in */
+	private final int framingBufferSize;
+
+	/** The number of bytes in the framing buffer that aren't part of a complete message yet */
+	private final int framingBufferedBytes;
+
+	/**
+	 * Makes a snapshot with the given numbers
+	 */
+	ConnectionStatistics(long bytesSent, long messagesSent, long bytesReceived, long messagesReceived, int queueDepth, int peakQueueDepth,
+			long writesCompleted, long totalWriteTime, long longestWriteTime, long totalDispatchDelay, long longestDispatchDelay,
+			int framingBufferSize, int framingBufferedBytes) {
+		this.bytesSent = bytesSent;
+		this.messagesSent = messagesSent;
+		this.bytesReceived = bytesReceived;
+		this.messagesReceived = messagesReceived;
+		this.queueDepth = queueDepth;
+		this.peakQueueDepth = peakQueueDepth;
+		this.writesCompleted = writesCompleted;
+		this.totalWriteTime = totalWriteTime;
+		this.longestWriteTime = longestWriteTime;
+		this.totalDispatchDelay = totalDispatchDelay;
+		this.longestDispatchDelay = longestDispatchDelay;
+		this.framingBufferSize = framingBufferSize;
+		this.framingBufferedBytes = framingBufferedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes that the socket has sent, including the bytes that frame each message
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the number of messages that the socket has completely sent. Snapshots that were replaced before they were
+	 * sent aren't counted.
+	 */
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * Returns the number of bytes that the socket has received, including the bytes that frame each message
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the number of messages that have been handed to the connection's callback
+	 */
+	public long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * Returns the number of messages that were waiting to be sent when this snapshot was taken, the same as
+	 * NetworkingLibrary.getQueueDepth()
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Returns the most messages that have ever been waiting to be sent at once
+	 */
+	public int getPeakQueueDepth() {
+		return peakQueueDepth;
+	}
+
+	/**
+	 * Returns the number of writes that the socket has finished. Each write sends a whole batch of messages.
+	 */
+	public long getWritesCompleted() {
+		return writesCompleted;
+	}
+
+	/**
+	 * Returns the average time between a write being started and it finishing, or 0 if none have finished
+	 */
+	public long getAverageWriteTime() {
+		return writesCompleted == 0 ? 0 : totalWriteTime / writesCompleted;
+	}
+
+	/**
+	 * Returns the longest time between a write being started and it finishing
+	 */
+	public long getLongestWriteTime() {
+		return longestWriteTime;
+	}
+
+	/**
+	 * Returns the average time between a message's data arriving and the message being handed to the callback, or 0 if
+	 * no messages have been received. This grows when callbacks are slow, or when messages wait for getData() or
+	 * getBinaryData() to be called.
+	 */
+	public long getAverageDispatchDelay() {
+		return messagesReceived == 0 ? 0 : totalDispatchDelay / messagesReceived;
+	}
+
+	/**
+	 * Returns the longest time between a message's data arriving and the message being handed to the callback
+	 */
+	public long getLongestDispatchDelay() {
+		return longestDispatchDelay;
+	}
+
+	/**
+	 * Returns the size, in bytes, of the buffer that incoming data is framed in. This only grows past its starting size
+	 * when a message is too big to fit.
+	 */
+	public int getFramingBufferSize() {
+		return framingBufferSize;
+	}
+
+	/**
+	 * Returns the number of bytes that have been received but aren't part of a complete message yet
+	 */
+	public int getFramingBufferedBytes() {
+		return framingBufferedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "sent " + messagesSent + " messages (" + bytesSent + " bytes), received " + messagesReceived + " messages (" + bytesReceived
+				+ " bytes), queue depth " + queueDepth + " (peak " + peakQueueDepth + "), write time " + getAverageWriteTime() / 1000 + "us (longest "
+				+ longestWriteTime / 1000 + "us), dispatch delay " + getAverageDispatchDelay() / 1000 + "us (longest " + longestDispatchDelay / 1000
+				+ "us), framing buffer " + framingBufferedBytes + "/" + framingBufferSize + " bytes";
+	}
+}
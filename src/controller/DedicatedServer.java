@@ -0,0 +1,291 @@
+package controller;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import model.Participant.Direction;
+import model.SimpleParticipant;
+
+/**
+ * Hosts Petroglyph games without a gui, so that a machine with no display can run them. Every caveman is played by a
+ * client, and nothing from Swing is ever touched, so no window or toolkit gets made. <br>
+ * Each room listens on its own port and hosts one game at a time. The game launches as soon as three clients have
+ * connected and the Server is ready for them, the next round starts a few seconds after each win, and once the game is
+ * over or a client drops, the room goes back to waiting for a new set of clients. <br>
+ * Usage: <code>java controller.DedicatedServer [--config file] [--port port] [--bind address] [--level level]
+ * [--rooms count] [--threads count]</code><br>
+ * A config file is a properties file, and any petroglyph.* property can go in it, such as petroglyph.engine.tickRate or
+ * petroglyph.server.frameRate. The options above can be set there too, as petroglyph.dedicated.port and so on, but the
+ * command line wins. Properties given with -D win over the config file.
+ *
+ * @author Sam Thayer
+ */
+public class DedicatedServer implements ServerHost, GameUpdateHandler {
+	/** The time between winning a round and the next round starting */
+	public static final long ROUND_BREAK_MILLIS = 3000;
+
+	/** The time between a game ending and the room listening for clients again, so that the end reaches them first */
+	public static final long REHOST_DELAY_MILLIS = 1000;
+
+	/** The prefix of every property that the command line options can also be set with */
+	private static final String PROPERTY_PREFIX = "petroglyph.dedicated.";
+
+	/** This room's number, for its messages */
+	private final int roomNumber;
+
+	/** Where this room listens for clients */
+	private final NetworkConfiguration configuration;
+
+	/** The level that each game starts at */
+	private final int startingLevel;
+
+	/** The scheduler that runs this room's rounds, or null if each round gets its own thread */
+	private final GameScheduler scheduler;
+
+	/** Starts rounds after breaks and rehosts rooms. This is shared by every room. */
+	private final Timer timer;
+
+	/** The server that clients are connected to, or null between games */
+	private Server server;
+
+	/** The game being played, or null if it hasn't launched yet */
+	private volatile GameEngine gameEngine;
+
+	/**
+	 * Starts the rooms that the command line and config file ask for, then returns. The rooms' timer keeps the JVM
+	 * running after that.
+	 */
+	public static void main(String[] args) {
+		// Nothing should be drawn, but some model classes use AWT's colors, so make sure they can't find a display
+		System.setProperty("java.awt.headless", "true");
+
+		Properties options = new Properties();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (!args[i].startsWith("--") || i + 1 == args.length) {
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+				options.setProperty(args[i].substring(2), args[++i]);
+			}
+
+			// This has to happen before GameEngine and Server are loaded, since they read their properties once
+			String configFile = options.getProperty("config");
+			if (configFile != null) {
+				loadConfig(configFile);
+			}
+
+			int port = intOption(options, "port", NetworkingLibrary.DEFAULT_PORT);
+			String bindAddress = options.getProperty("bind", System.getProperty(PROPERTY_PREFIX + "bind"));
+			int startingLevel = intOption(options, "level", 1);
+			int rooms = intOption(options, "rooms", 1);
+			int threads = intOption(options, "threads", 0);
+			if (rooms <= 0 || threads < 0) {
+				throw new IllegalArgumentException("There must be at least one room, and the thread count can't be negative.");
+			}
+
+			// One game doesn't need sharing, and it keeps the lowest jitter on a thread of its own
+			GameScheduler scheduler = null;
+			if (rooms > 1 || threads > 0) {
+				scheduler = threads > 0 ? new GameScheduler(threads) : new GameScheduler();
+			}
+
+			// This isn't a daemon, so it keeps the server running
+			Timer timer = new Timer("Petroglyph dedicated server", false);
+			for (int i = 0; i < rooms; i++) {
+				NetworkConfiguration configuration = new NetworkConfiguration().setPort(port == 0 ? 0 : port + i).setBindAddress(bindAddress);
+				DedicatedServer room = new DedicatedServer(i, configuration, startingLevel, scheduler, timer);
+				if (!room.host()) {
+					System.err.println("Couldn't listen on port " + (port + i) + ".");
+					System.exit(1);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: java controller.DedicatedServer [--config file] [--port port] [--bind address] [--level level] "
+					+ "[--rooms count] [--threads count]");
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("Couldn't read the config file: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * A helper method that copies every property in the given file into the system properties, unless it was already
+	 * set on the command line with -D
+	 */
+	private static void loadConfig(String fileName) throws IOException {
+		Properties config = new Properties();
+		InputStream in = new FileInputStream(fileName);
+		try {
+			config.load(in);
+		} finally {
+			in.close();
+		}
+
+		for (String name : config.stringPropertyNames()) {
+			if (System.getProperty(name) == null) {
+				System.setProperty(name, config.getProperty(name));
+			}
+		}
+	}
+
+	/**
+	 * A helper method that returns the given option from the command line, or else from its property, or else the
+	 * given default
+	 */
+	private static int intOption(Properties options, String name, int defaultValue) {
+		String value = options.getProperty(name, System.getProperty(PROPERTY_PREFIX + name));
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The " + name + " option must be a whole number, not " + value);
+		}
+	}
+
+	/**
+	 * Makes a room that will host its games with the given settings. It doesn't listen until host() is called.
+	 */
+	public DedicatedServer(int roomNumber, NetworkConfiguration configuration, int startingLevel, GameScheduler scheduler, Timer timer) {
+		this.roomNumber = roomNumber;
+		this.configuration = configuration;
+		this.startingLevel = startingLevel;
+		this.scheduler = scheduler;
+		this.timer = timer;
+	}
+
+	/**
+	 * Starts listening for a new set of clients. Returns false if the server couldn't be opened.
+	 */
+	public synchronized boolean host() {
+		try {
+			server = new Server(this, 0, configuration);
+		} catch (IOException e) {
+			server = null;
+			return false;
+		}
+		System.out.println("Room " + roomNumber + " is waiting for players.");
+		return true;
+	}
+
+	/**
+	 * A helper method that ends whatever game is going on, and listens for new clients once the last messages have had
+	 * time to go out
+	 */
+	private synchronized void gameOver() {
+		if (gameEngine != null) {
+			gameEngine.close();
+			gameEngine = null;
+		}
+		server = null;
+
+		timer.schedule(new rehost(), REHOST_DELAY_MILLIS);
+	}
+
+	@Override
+	public void clientConnected(int clientsStillNeeded) {
+		System.out.println("Room " + roomNumber + ": a player connected, waiting for " + clientsStillNeeded + " more.");
+	}
+
+	@Override
+	public synchronized void readyToLaunch() {
+		// Nobody here has to press a button, so the game starts right away
+		GameUpdateHandler[] updateArray = new GameUpdateHandler[] { server, this };
+		gameEngine = new GameEngine(updateArray, startingLevel, GameEngine.TICKS_PER_SECOND, scheduler);
+		gameEngine.startRound();
+	}
+
+	@Override
+	public void lostConnection() {
+		System.out.println("Room " + roomNumber + ": lost a player, so the game is over.");
+		gameOver();
+	}
+
+	@Override
+	public void tryThrowSpear(int cavemanNumber) {
+		GameEngine engine = gameEngine;
+		if (engine != null)
+			engine.tryThrowSpear(cavemanNumber);
+	}
+
+	@Override
+	public void tryThrowSpear(int cavemanNumber, int lagMillis) {
+		GameEngine engine = gameEngine;
+		if (engine != null)
+			engine.tryThrowSpear(cavemanNumber, lagMillis);
+	}
+
+	@Override
+	public void beginMovement(int cavemanNumber, Direction direction) {
+		GameEngine engine = gameEngine;
+		if (engine != null)
+			engine.beginMovement(cavemanNumber, direction);
+	}
+
+	@Override
+	public void endMovement(int cavemanNumber, Direction direction) {
+		GameEngine engine = gameEngine;
+		if (engine != null)
+			engine.endMovement(cavemanNumber, direction);
+	}
+
+	@Override
+	public void newFrame(SimpleParticipant[] participants) {
+		// Nobody is watching
+	}
+
+	@Override
+	public int getUpdateRate() {
+		// Frames aren't used here, so have as few of them as possible
+		return 1;
+	}
+
+	@Override
+	public void startRound(int level) {
+		System.out.println("Room " + roomNumber + " is starting level " + level + ".");
+	}
+
+	@Override
+	public void roundWin(final GameEngine engine) {
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				// Unless the game ended during the break
+				if (engine == gameEngine) {
+					engine.startRound();
+				}
+			}
+		}, ROUND_BREAK_MILLIS);
+	}
+
+	@Override
+	public void roundLoss() {
+		// The server has already sent the loss and closed its connections
+		System.out.println("Room " + roomNumber + " lost the game.");
+		gameOver();
+	}
+
+	/**
+	 * Listens for a new set of clients, and keeps trying if the port can't be opened, since something else may have
+	 * grabbed it in the meantime
+	 *
+	 * @author Sam Thayer
+	 */
+	private class rehost extends TimerTask {
+		@Override
+		public void run() {
+			if (!host()) {
+				System.err.println("Room " + roomNumber + " couldn't listen again. Retrying...");
+				// A TimerTask can only be scheduled once
+				timer.schedule(new rehost(), REHOST_DELAY_MILLIS);
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package controller;
+
+/**
+ * The clock that runs one round of a game, by calling its task once per tick. This is either a {@link TickLoop} on its
+ * own thread, or a game on a {@link GameScheduler}'s shared threads.
+ *
+ * @author Sam Thayer
+ */
+public interface GameClock {
+	/**
+	 * Stops running ticks. A tick that is already running will finish, but no more will start. This may be called from
+	 * the task itself.
+	 */
+	public void stop();
+
+	/**
+	 * Returns the time between the starts of ticks, in nanoseconds
+	 */
+	public long getTickLength();
+
+	/**
+	 * Returns a snapshot of how well this clock has kept time so far
+	 */
+	public TickStatistics getStatistics();
+}
@@ -1,32 +1,67 @@
 package controller;
 
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import controller.TickLoop.OverrunPolicy;
 import model.Model;
 import model.Model.GameState;
 import model.Participant.Direction;
 
 public class GameEngine {
 
-	public static final int MILLIES_PER_FRAME = 1000 / 40;
+	/** The usual number of frames per second, which the model's speeds are measured against */
+	public static final int DEFAULT_TICKS_PER_SECOND = 40;
+
+	/** The time between frames at the usual rate */
+	public static final int MILLIES_PER_FRAME = 1000 / DEFAULT_TICKS_PER_SECOND;
+
+	/**
+	 * The number of frames per second to run games at, which can be set with the petroglyph.engine.tickRate property. A
+	 * rate below 1 is taken as 1, since a game has to tick.
+	 */
+	public static final int TICKS_PER_SECOND = Math.max(Integer.getInteger("petroglyph.engine.tickRate", DEFAULT_TICKS_PER_SECOND),
+			1);
+
+	/** What to do when frames fall behind, which can be set with the petroglyph.engine.overrunPolicy property */
+	public static final OverrunPolicy OVERRUN_POLICY = OverrunPolicy.valueOf(System.getProperty("petroglyph.engine.overrunPolicy",
+			OverrunPolicy.catchUp.name()));
 
 	public static final double INITIAL_MAMMOTH_SPEED = .004;
 	public static final double MAMMOTH_SPEEDUP_PER_LEVEL = .0015;
 
-	/** The model that runs the game */
+	/** The model that runs the game. Only the game clock touches it once a round has started. */
 	public Model model;
 
+	/**
+	 * Inputs waiting for the start of the next frame. Any thread can add to this, but only the game clock takes from it,
+	 * so inputs never change the model in the middle of a frame, and always land on a frame boundary.
+	 */
+	private MpscQueue<queuedInput> inputs;
+
 	/**
 	 * An array of objects that should be updated for every frame and at the end of rounds.
 	 */
 	private GameUpdateHandler[] updateArray;
 
-	/** The game clock */
-	public Timer timer;
+	/** The number of frames per second that each handler in updateArray wants, or ticksPerSecond if it wants them all */
+	private int[] updateRates;
+
+	/**
+	 * How close each handler in updateArray is to its next frame. Every tick adds its update rate, and it gets a frame
+	 * once this reaches ticksPerSecond, so frames are spread as evenly as the ticks allow.
+	 */
+	private int[] updateProgress;
+
+	/** The game clock, or null if no round has started */
+	private volatile GameClock clock;
+
+	/** The scheduler that runs the game clock, or null to give each round a TickLoop of its own */
+	private GameScheduler scheduler;
 
-	/** The directional inputs that player 0 is currently pressing */
+	/** The number of frames per second */
+	private int ticksPerSecond;
+
+	/** The directional inputs that player 0 is currently pressing. Only the game clock touches these lists. */
 	ArrayList<Direction> P0Inputs;
 
 	/** The directional inputs that player 1 is currently pressing */
@@ -42,7 +77,31 @@ public class GameEngine {
 	 * Creates a GameEngine that will start the game at the given level, and updates the given gameView at every frame.
 	 */
 	public GameEngine(GameUpdateHandler[] updateArray, int startingLevel) {
+		this(updateArray, startingLevel, DEFAULT_TICKS_PER_SECOND);
+	}
+
+	/**
+	 * Creates a GameEngine that will start the game at the given level, and updates the given gameView at every frame,
+	 * which happens the given number of times per second. The game plays at the same speed whatever the rate is.
+	 */
+	public GameEngine(GameUpdateHandler[] updateArray, int startingLevel, int ticksPerSecond) {
+		this(updateArray, startingLevel, ticksPerSecond, null);
+	}
+
+	/**
+	 * Creates a GameEngine that will start the game at the given level, and updates the given gameView at every frame,
+	 * which happens the given number of times per second. Rounds are run by the given scheduler, along with any other
+	 * games it has, instead of on a thread of their own. If the scheduler is null, each round gets its own thread.
+	 */
+	public GameEngine(GameUpdateHandler[] updateArray, int startingLevel, int ticksPerSecond, GameScheduler scheduler) {
+		if (ticksPerSecond <= 0) {
+			throw new IllegalArgumentException("Tick rates must be positive.");
+		}
 		this.updateArray = updateArray;
+		this.ticksPerSecond = ticksPerSecond;
+		this.scheduler = scheduler;
+		this.updateRates = new int[updateArray.length];
+		this.updateProgress = new int[updateArray.length];
 
 		// -1 because it is incremented each time a level starts, even the first time:
 		level = startingLevel - 1;
@@ -50,14 +109,23 @@ public class GameEngine {
 		P0Inputs = new ArrayList<Direction>();
 		P1Inputs = new ArrayList<Direction>();
 		P2Inputs = new ArrayList<Direction>();
+		inputs = new MpscQueue<queuedInput>();
 	}
 
 	/**
 	 * Shuts down this GameEngine immediately. It is assumed that the caller will update the gui as well.
 	 */
 	public void close() {
-		if (timer != null)
-			timer.cancel();
+		if (clock != null)
+			clock.stop();
+	}
+
+	/**
+	 * Returns a snapshot of how well the current round's clock has kept time, or null if no round has started
+	 */
+	public TickStatistics getTickStatistics() {
+		GameClock current = clock;
+		return current == null ? null : current.getStatistics();
 	}
 
 	/**
@@ -65,44 +133,85 @@ public class GameEngine {
 	 */
 	public void startRound() {
 		level++;
-		model = new Model(INITIAL_MAMMOTH_SPEED + level * MAMMOTH_SPEEDUP_PER_LEVEL);
+		model = new Model(INITIAL_MAMMOTH_SPEED + level * MAMMOTH_SPEEDUP_PER_LEVEL, DEFAULT_TICKS_PER_SECOND / (double) ticksPerSecond);
 
 		for (GameUpdateHandler f : updateArray) {
 			f.startRound(level);
 		}
 
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new newFrameHandler(), 0, MILLIES_PER_FRAME);
+		for (int i = 0; i < updateArray.length; i++) {
+			int rate = updateArray[i].getUpdateRate();
+			updateRates[i] = rate <= 0 ? ticksPerSecond : Math.min(rate, ticksPerSecond);
+			// Everyone gets the first frame
+			updateProgress[i] = ticksPerSecond - updateRates[i];
+		}
+
+		if (scheduler != null) {
+			clock = scheduler.schedule(ticksPerSecond, OVERRUN_POLICY, new newFrameHandler());
+		} else {
+			TickLoop loop = new TickLoop("Petroglyph game clock", ticksPerSecond, OVERRUN_POLICY, new newFrameHandler());
+			clock = loop;
+			loop.start();
+		}
 	}
 
 	/**
-	 * Has the identified caveman throw its spear if he is holding it.
+	 * Has the identified caveman throw its spear if he is holding it, at the start of the next frame. This can be called
+	 * from any thread.
 	 */
 	public void tryThrowSpear(int cavemanNumber) {
-		model.tryThrowSpear(cavemanNumber);
+		tryThrowSpear(cavemanNumber, 0);
 	}
 
 	/**
-	 * Has the identified caveman begin trying to move in the given direction.
+	 * Has the identified caveman throw its spear if he is holding it, for a player who is seeing the game the given
+	 * number of milliseconds late. The spear hits the mammoth where that player saw it. This happens at the start of the
+	 * next frame, and can be called from any thread.
+	 */
+	public void tryThrowSpear(int cavemanNumber, int lagMillis) {
+		inputs.offer(new queuedInput(cavemanNumber, null, false, lagMillis));
+	}
+
+	/**
+	 * Has the identified caveman begin trying to move in the given direction, at the start of the next frame. This can be
+	 * called from any thread.
 	 */
 	public void beginMovement(int cavemanNumber, Direction direction) {
-		ArrayList<Direction> currentInputs = getPlayerInputArray(cavemanNumber);
-		if (!currentInputs.contains(direction)) {
-			currentInputs.add(0, direction);
-			model.directCaveman(cavemanNumber, direction, true);
-		}
+		inputs.offer(new queuedInput(cavemanNumber, direction, true, 0));
 	}
 
 	/**
-	 * Has the identified caveman stop trying to move in the given direction.
+	 * Has the identified caveman stop trying to move in the given direction, at the start of the next frame. This can be
+	 * called from any thread.
 	 */
 	public void endMovement(int cavemanNumber, Direction direction) {
-		ArrayList<Direction> currentInputs = getPlayerInputArray(cavemanNumber);
-		if (currentInputs.remove(direction)) {
-			if (currentInputs.isEmpty()) {
-				model.directCaveman(cavemanNumber, direction, false);
-			} else {
-				model.directCaveman(cavemanNumber, currentInputs.get(0), true);
+		inputs.offer(new queuedInput(cavemanNumber, direction, false, 0));
+	}
+
+	/**
+	 * Applies every input that has been queued since the last frame, in the order they were queued. Only the game clock
+	 * calls this.
+	 */
+	private void processInputs() {
+		queuedInput input;
+		while ((input = inputs.poll()) != null) {
+			if (input.direction == null) {
+				model.tryThrowSpear(input.cavemanNumber, (int) Math.round(input.lagMillis * ticksPerSecond / 1000.0));
+				continue;
+			}
+
+			ArrayList<Direction> currentInputs = getPlayerInputArray(input.cavemanNumber);
+			if (input.begin) {
+				if (!currentInputs.contains(input.direction)) {
+					currentInputs.add(0, input.direction);
+					model.directCaveman(input.cavemanNumber, input.direction, true);
+				}
+			} else if (currentInputs.remove(input.direction)) {
+				if (currentInputs.isEmpty()) {
+					model.directCaveman(input.cavemanNumber, input.direction, false);
+				} else {
+					model.directCaveman(input.cavemanNumber, currentInputs.get(0), true);
+				}
 			}
 		}
 	}
@@ -121,22 +230,57 @@ public class GameEngine {
 		}
 	}
 
-	class newFrameHandler extends TimerTask {
+	/**
+	 * One player's input, waiting for the next frame
+	 * 
+	 * @author Sam Thayer
+	 */
+	private static class queuedInput {
+		/** The caveman the input is for */
+		final int cavemanNumber;
+
+		/** The direction to begin or end moving in, or null to throw the caveman's spear */
+		final Direction direction;
+
+		/** True to begin moving in direction, false to stop */
+		final boolean begin;
+
+		/** How far behind the game the player who threw a spear was, in milliseconds */
+		final int lagMillis;
+
+		/**
+		 * Makes an input with the given details
+		 */
+		queuedInput(int cavemanNumber, Direction direction, boolean begin, int lagMillis) {
+			this.cavemanNumber = cavemanNumber;
+			this.direction = direction;
+			this.begin = begin;
+			this.lagMillis = lagMillis;
+		}
+	}
+
+	class newFrameHandler implements Runnable {
 		// This is the game clock; run() is called for every new frame.
 		@Override
 		public void run() {
+			processInputs();
 			GameState state = model.calculateNextFrame();
 
-			for (GameUpdateHandler f : updateArray)
-				f.newFrame(model.getParticipantList());
+			for (int i = 0; i < updateArray.length; i++) {
+				updateProgress[i] += updateRates[i];
+				if (updateProgress[i] >= ticksPerSecond || state != GameState.running) {
+					updateProgress[i] -= ticksPerSecond;
+					updateArray[i].newFrame(model.getParticipantList());
+				}
+			}
 
 			// end game if needed
 			if (state == GameState.win) {
-				timer.cancel();
+				clock.stop();
 				for (GameUpdateHandler f : updateArray)
 					f.roundWin(GameEngine.this);
 			} else if (state == GameState.loss) {
-				timer.cancel();
+				clock.stop();
 				for (GameUpdateHandler f : updateArray)
 					f.roundLoss();
 			}
@@ -0,0 +1,245 @@
+package controller;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import controller.TickLoop.OverrunPolicy;
+
+/**
+ * Runs the clocks of many games on a fixed number of threads, so that hosting lots of games at once doesn't mean a
+ * thread for every one of them. <br>
+ * The games are split into shards, one per thread, and each new game goes to whichever shard has the fewest. Every game
+ * keeps its own schedule, exactly as it would on a {@link TickLoop}, but a game that joins a shard with another game at
+ * the same rate starts ticking in step with it, so that the shard can wake up once and tick all of them in one batch.
+ * Games later in a batch start a little late, which shows up in the shard's statistics as start jitter. <br>
+ * The threads are daemon threads, so they don't keep the JVM running by themselves.
+ *
+ * @author Sam Thayer
+ */
+public class GameScheduler {
+	/** The shards that games are split between */
+	private final shard[] shards;
+
+	/**
+	 * Makes a scheduler with a thread for every processor this machine has
+	 */
+	public GameScheduler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Makes a scheduler with the given number of threads
+	 */
+	public GameScheduler(int threadCount) {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException("A scheduler needs at least one thread.");
+		}
+		shards = new shard[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			shards[i] = new shard();
+			Thread thread = new Thread(shards[i], "Petroglyph game shard " + i);
+			thread.setDaemon(true);
+			shards[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Starts running the given task the given number of times per second, with the first tick as soon as its shard can
+	 * fit it in. Returns the game's clock, which stops it.
+	 */
+	public GameClock schedule(int ticksPerSecond, OverrunPolicy overrunPolicy, Runnable task) {
+		scheduledGame game = new scheduledGame(new TickSchedule(ticksPerSecond, overrunPolicy, System.nanoTime()), task);
+
+		shard emptiest = shards[0];
+		for (shard s : shards) {
+			if (s.gameCount < emptiest.gameCount) {
+				emptiest = s;
+			}
+		}
+		emptiest.add(game);
+		return game;
+	}
+
+	/**
+	 * Returns the number of threads that games are split between
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the number of games that are being run by the given shard
+	 */
+	public int getGameCount(int shardNumber) {
+		return shards[shardNumber].gameCount;
+	}
+
+	/**
+	 * Returns a snapshot of how well the given shard has kept time, for every tick of every game it has run. Its tick
+	 * length is 0, since its games may tick at different rates.
+	 */
+	public TickStatistics getShardStatistics(int shardNumber) {
+		return shards[shardNumber].recorder.snapshot(0);
+	}
+
+	/**
+	 * One game's clock, run by a shard
+	 *
+	 * @author Sam Thayer
+	 */
+	private static class scheduledGame implements GameClock {
+		/** When the game's ticks are due. Only its shard touches this, apart from reading the statistics. */
+		final TickSchedule schedule;
+
+		/** What to run every tick */
+		final Runnable task;
+
+		/** False once the game has been stopped */
+		volatile boolean running;
+
+		/**
+		 * Makes a game that runs the given task on the given schedule
+		 */
+		scheduledGame(TickSchedule schedule, Runnable task) {
+			this.schedule = schedule;
+			this.task = task;
+			this.running = true;
+		}
+
+		@Override
+		public void stop() {
+			// The shard lets go of it the next time it looks
+			running = false;
+		}
+
+		@Override
+		public long getTickLength() {
+			return schedule.getTickLength();
+		}
+
+		@Override
+		public TickStatistics getStatistics() {
+			return schedule.getStatistics();
+		}
+	}
+
+	/**
+	 * A thread's share of the games
+	 *
+	 * @author Sam Thayer
+	 */
+	private static class shard implements Runnable {
+		/** The thread that runs this shard */
+		Thread thread;
+
+		/** Games that have been added, but that the thread hasn't picked up yet */
+		final MpscQueue<scheduledGame> newGames;
+
+		/** The games that the thread is running. Only the thread touches this. */
+		final ArrayList<scheduledGame> games;
+
+		/** The number of games in this shard, including new ones, and ones that have stopped but haven't been let go of */
+		volatile int gameCount;
+
+		/** How well every tick of every game has kept time */
+		final TickRecorder recorder;
+
+		/**
+		 * Makes an empty shard
+		 */
+		shard() {
+			this.newGames = new MpscQueue<scheduledGame>();
+			this.games = new ArrayList<scheduledGame>();
+			this.gameCount = 0;
+			this.recorder = new TickRecorder();
+		}
+
+		/**
+		 * Hands the given game to this shard's thread
+		 */
+		synchronized void add(scheduledGame game) {
+			gameCount++;
+			newGames.offer(game);
+			LockSupport.unpark(thread);
+		}
+
+		/**
+		 * Runs ticks as they come due, forever
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				long now = System.nanoTime();
+				long nextTick = Long.MAX_VALUE;
+				boolean anyDue = false;
+
+				pickUpNewGames();
+				for (int i = games.size() - 1; i >= 0; i--) {
+					scheduledGame game = games.get(i);
+					if (!game.running) {
+						// Swap it with the last one, since the order doesn't matter
+						games.set(i, games.get(games.size() - 1));
+						games.remove(games.size() - 1);
+						synchronized (this) {
+							gameCount--;
+						}
+					} else if (game.schedule.getNextTick() - now <= 0) {
+						anyDue = true;
+					} else {
+						nextTick = Math.min(nextTick, game.schedule.getNextTick());
+					}
+				}
+
+				if (anyDue) {
+					runDueGames();
+				} else if (nextTick == Long.MAX_VALUE) {
+					LockSupport.park(this);
+				} else if (nextTick - now > TickLoop.SPIN_THRESHOLD) {
+					LockSupport.parkNanos(this, nextTick - now - TickLoop.SPIN_THRESHOLD);
+				} else {
+					Thread.yield();
+				}
+			}
+		}
+
+		/**
+		 * Starts running any games that have been added. Each one ticks in step with a game that's already here at the same
+		 * rate, if there is one.
+		 */
+		private void pickUpNewGames() {
+			scheduledGame game;
+			while ((game = newGames.poll()) != null) {
+				for (scheduledGame other : games) {
+					if (other.running && other.schedule.getTickLength() == game.schedule.getTickLength()) {
+						game.schedule.setNextTick(other.schedule.getNextTick());
+						break;
+					}
+				}
+				games.add(game);
+			}
+		}
+
+		/**
+		 * Runs one tick of every game that is due, as one batch
+		 */
+		private void runDueGames() {
+			// Everything that's due now is in this batch, even if running it takes a while
+			long batchTime = System.nanoTime();
+			for (int i = 0; i < games.size(); i++) {
+				scheduledGame game = games.get(i);
+				if (game.running && game.schedule.getNextTick() - batchTime <= 0) {
+					long start = System.nanoTime();
+					try {
+						game.task.run();
+					} catch (RuntimeException e) {
+						// A broken game shouldn't take every other game on this shard down with it
+						e.printStackTrace();
+						game.stop();
+					}
+					game.schedule.tickRan(start, System.nanoTime(), recorder);
+				}
+			}
+		}
+	}
+}
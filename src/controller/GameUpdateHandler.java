@@ -18,6 +18,13 @@ public interface GameUpdateHandler {
 	 */
 	public void newFrame(SimpleParticipant[] participants);
 
+	/**
+	 * Returns the number of times per second that this handler wants newFrame() to be called, or 0 to have it called for
+	 * every frame. Frames are never sent faster than the game runs, and when the game runs faster than this, some frames
+	 * are skipped, although the last frame of each round is always sent. This is checked at the start of each round.
+	 */
+	public int getUpdateRate();
+
 	/**
 	 * Indicates that a new round of the game is starting
 	 * 
@@ -0,0 +1,94 @@
+package controller;
+
+/**
+ * Keeps track of how healthy the connection to one peer is: when we last heard anything from it, and how long its PING
+ * messages take to come back. The round trip time is smoothed the same way TCP does it, so one slow PONG doesn't throw
+ * it off, and the jitter is how far round trips usually stray from it. <br>
+ * Times are measured with System.nanoTime(), but reported in milliseconds.
+ *
+ * @author Sam Thayer
+ */
+class HeartbeatMonitor {
+	/** How much of each new round trip goes into the smoothed round trip time */
+	private static final double ROUND_TRIP_GAIN = 1.0 / 8;
+
+	/** How much of each new round trip's deviation goes into the jitter */
+	private static final double JITTER_GAIN = 1.0 / 4;
+
+	/** The number of nanoseconds in a millisecond */
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	/** The time when anything was last heard from the peer */
+	private volatile long lastHeardFrom;
+
+	/** The smoothed round trip time, in nanoseconds, or 0 if no PONG has come back yet */
+	private volatile double roundTripTime;
+
+	/** The smoothed deviation of round trip times, in nanoseconds */
+	private volatile double jitter;
+
+	/**
+	 * Makes a monitor for a peer that was just heard from
+	 */
+	HeartbeatMonitor() {
+		this.lastHeardFrom = System.nanoTime();
+		this.roundTripTime = 0;
+		this.jitter = 0;
+	}
+
+	/**
+	 * Notes that something just arrived from the peer
+	 */
+	void heardFrom() {
+		lastHeardFrom = System.nanoTime();
+	}
+
+	/**
+	 * Adds a round trip to the estimates, given the time that a PONG says its PING was sent. Returns false if that time is
+	 * impossible, in which case the PONG should be treated as malformed.
+	 */
+	synchronized boolean pongReceived(long pingSentAt) {
+		long sample = System.nanoTime() - pingSentAt;
+		if (sample < 0) {
+			return false;
+		}
+
+		if (roundTripTime == 0) {
+			// The first sample is all we have to go on
+			roundTripTime = sample;
+			jitter = sample / 2.0;
+		} else {
+			jitter += JITTER_GAIN * (Math.abs(roundTripTime - sample) - jitter);
+			roundTripTime += ROUND_TRIP_GAIN * (sample - roundTripTime);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if nothing has been heard from the peer in the given number of milliseconds
+	 */
+	boolean isTimedOut(long timeoutMillis) {
+		return System.nanoTime() - lastHeardFrom > timeoutMillis * 1000000L;
+	}
+
+	/**
+	 * Returns true once at least one PONG has come back, so that the estimates mean something
+	 */
+	boolean hasRoundTrip() {
+		return roundTripTime != 0;
+	}
+
+	/**
+	 * Returns the smoothed round trip time in milliseconds, or 0 if no PONG has come back yet
+	 */
+	double getRoundTripTime() {
+		return roundTripTime / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Returns how far round trip times usually stray from the smoothed one, in milliseconds
+	 */
+	double getJitter() {
+		return jitter / NANOS_PER_MILLI;
+	}
+}
@@ -0,0 +1,85 @@
+package controller;
+
+import model.Participant.Direction;
+
+/**
+ * One of a player's inputs, as it's sent in the binary format: a THROW_SPEAR, BEGIN_MOVEMENT, or END_MOVEMENT message,
+ * numbered so the server can say which ones it has processed, and stamped with the tick it should be processed on. <br>
+ * After the key, the message holds the sequence number, then a field separator, then the tick, then another field
+ * separator, and then either the direction for movement, or for throwing a spear, the tick that the player was seeing
+ * when they threw it (or -1 if they weren't seeing any yet).
+ *
+ * @author Sam Thayer
+ */
+class InputCommand {
+	/** The message key for this input */
+	final String key;
+
+	/** The direction of a movement, or null for throwing a spear */
+	final Direction direction;
+
+	/** This input's number. Each player's inputs are numbered from 1, in the order they're sent. */
+	final int sequence;
+
+	/** The server tick that this input should be processed on */
+	final int tick;
+
+	/** The server tick the player was seeing when they threw a spear, or -1 for movement */
+	final int viewTick;
+
+	/**
+	 * Makes an input with the given key, direction, number, and tick
+	 */
+	InputCommand(String key, Direction direction, int sequence, int tick) {
+		this(key, direction, sequence, tick, -1);
+	}
+
+	/**
+	 * Makes an input with the given key, direction, number, tick, and view tick
+	 */
+	InputCommand(String key, Direction direction, int sequence, int tick, int viewTick) {
+		this.key = key;
+		this.direction = direction;
+		this.sequence = sequence;
+		this.tick = tick;
+		this.viewTick = viewTick;
+	}
+
+	/**
+	 * Returns true if this is a BEGIN_MOVEMENT or END_MOVEMENT
+	 */
+	boolean isMovement() {
+		return direction != null;
+	}
+
+	/**
+	 * Returns the message that sends this input
+	 */
+	String toMessage() {
+		return key + sequence + Server.FIELD_SEPERATOR + tick + Server.FIELD_SEPERATOR
+				+ (direction != null ? direction.toString() : Integer.toString(viewTick));
+	}
+
+	/**
+	 * Parses the rest of an input message, after the given key.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the message is malformed
+	 */
+	static InputCommand parse(String key, String message) {
+		String[] fields = message.split(Character.toString(Server.FIELD_SEPERATOR));
+		if (fields.length != 3) {
+			throw new IllegalArgumentException("Input messages need a sequence number, a tick, and a direction or view tick.");
+		}
+
+		int sequence = Integer.parseInt(fields[0]);
+		if (sequence <= 0) {
+			throw new IllegalArgumentException("Inputs are numbered from 1.");
+		}
+		int tick = Integer.parseInt(fields[1]);
+		if (key.equals(Server.THROW_SPEAR_KEY)) {
+			return new InputCommand(key, null, sequence, tick, Integer.parseInt(fields[2]));
+		}
+		return new InputCommand(key, Direction.valueOf(fields[2]), sequence, tick);
+	}
+}
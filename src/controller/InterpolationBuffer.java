@@ -0,0 +1,248 @@
+package controller;
+
+import model.SimpleParticipant;
+
+/**
+ * Holds the last few frames a client has received, so that the view can be drawn a little in the past, partway between
+ * the two frames on either side of that moment. That way a frame that arrives a bit late doesn't make the game stutter,
+ * since it's still in time to be drawn, and the view can be drawn smoothly even when frames arrive less often than the
+ * view is drawn. <br>
+ * How far in the past to draw is worked out from how frames have been arriving. Each frame is stamped with the
+ * server's time, so the difference between that and the time it arrived here is how long it took to get here (plus the
+ * difference between the two clocks, which doesn't matter since it's the same for every frame). How much that
+ * changes from frame to frame is the jitter, smoothed the same way RTP does it. Drawing one frame's worth of time plus a
+ * few jitters behind the average frame leaves room for most late frames. When the delay changes, it's eased in by
+ * drawing slightly faster or slower than real time, so the game never jumps. <br>
+ * All times are in nanoseconds, from System.nanoTime() on whichever machine they're for.
+ *
+ * @author Sam Thayer
+ */
+class InterpolationBuffer {
+	/** The time between the server's ticks */
+	private final long tickLength;
+
+	/** The number of frames to hold on to */
+	private static final int BUFFER_LENGTH = 16;
+
+	/** How much of each new frame's transit time goes into the average transit time */
+	private static final double TRANSIT_GAIN = 1.0 / 16;
+
+	/** How much of each change in transit time goes into the jitter */
+	private static final double JITTER_GAIN = 1.0 / 16;
+
+	/** How much of each gap between frames goes into the average gap */
+	private static final double SPACING_GAIN = 1.0 / 8;
+
+	/** The number of jitters to leave room for, on top of the gap between frames */
+	private static final double JITTER_MARGIN = 3;
+
+	/** The longest delay to ever draw with, no matter how bad the jitter gets */
+	private static final long MAX_DELAY = 250 * 1000000L;
+
+	/** How much faster or slower than real time the view may be drawn while the delay is changing */
+	private static final double MAX_TIME_WARP = 0.1;
+
+	/** The frames being held, in the order they arrived, wrapping around */
+	private final SimpleParticipant[][] frames;
+
+	/** The tick of each frame in frames */
+	private final int[] frameTicks;
+
+	/** The server's time at each frame in frames */
+	private final long[] frameTimes;
+
+	/** The number of frames in frames */
+	private int frameCount;
+
+	/** The index in frames of the newest frame */
+	private int newest;
+
+	/** The average difference between a frame's arrival time and its server time, or 0 if no frames have arrived */
+	private double transit;
+
+	/** The difference between the newest frame's arrival time and its server time */
+	private long lastTransit;
+
+	/** The smoothed change in transit time from one frame to the next */
+	private double jitter;
+
+	/** The average gap between frames on the server's clock */
+	private double spacing;
+
+	/** How far behind the average frame the view is being drawn, or -1 before the first frame arrives */
+	private double delay;
+
+	/** The server time that was last drawn */
+	private double lastRenderTime;
+
+	/** The local time that the view was last drawn */
+	private long lastSampleTime;
+
+	/** The tick of the newest frame if it was last drawn as it is, so it doesn't need drawing again, or -1 otherwise */
+	private int heldTick;
+
+	/**
+	 * Makes an empty buffer for frames from a server that ticks the given number of times per second
+	 */
+	InterpolationBuffer(int ticksPerSecond) {
+		this.tickLength = 1000000000L / ticksPerSecond;
+		this.frames = new SimpleParticipant[BUFFER_LENGTH][];
+		this.frameTicks = new int[BUFFER_LENGTH];
+		this.frameTimes = new long[BUFFER_LENGTH];
+		this.frameCount = 0;
+		this.newest = BUFFER_LENGTH - 1;
+		this.transit = 0;
+		this.lastTransit = 0;
+		this.jitter = 0;
+		// Until frames say otherwise, assume the server sends one every tick
+		this.spacing = tickLength;
+		this.delay = -1;
+		this.lastRenderTime = Double.NEGATIVE_INFINITY;
+		this.lastSampleTime = 0;
+		this.heldTick = -1;
+	}
+
+	/**
+	 * Adds a frame that arrived at the given time. Frames must be added in order; older frames should be thrown away
+	 * before they get here.
+	 */
+	synchronized void add(int tick, long serverTime, SimpleParticipant[] participants, long arrivalTime) {
+		long frameTransit = arrivalTime - serverTime;
+		if (delay < 0) {
+			// The first frame is all we have to go on
+			transit = frameTransit;
+			delay = targetDelay();
+		} else {
+			jitter += JITTER_GAIN * (Math.abs(frameTransit - lastTransit) - jitter);
+			transit += TRANSIT_GAIN * (frameTransit - transit);
+			if (frameCount > 0 && serverTime > frameTimes[newest]) {
+				spacing += SPACING_GAIN * (serverTime - frameTimes[newest] - spacing);
+			}
+		}
+		lastTransit = frameTransit;
+
+		newest = (newest + 1) % BUFFER_LENGTH;
+		frames[newest] = participants;
+		frameTicks[newest] = tick;
+		frameTimes[newest] = serverTime;
+		frameCount = Math.min(frameCount + 1, BUFFER_LENGTH);
+	}
+
+	/**
+	 * Throws away every frame, but keeps what has been learned about how they arrive. This should be called when a
+	 * round starts, so the last round's frames aren't drawn into the new one.
+	 */
+	synchronized void clear() {
+		for (int i = 0; i < BUFFER_LENGTH; i++) {
+			frames[i] = null;
+		}
+		frameCount = 0;
+		lastRenderTime = Double.NEGATIVE_INFINITY;
+		heldTick = -1;
+	}
+
+	/**
+	 * Returns the participants as they should be drawn at the given time. If redraw is false, returns null instead when
+	 * they'd be the same as last time.
+	 */
+	synchronized SimpleParticipant[] sample(long now, boolean redraw) {
+		if (frameCount == 0) {
+			return null;
+		}
+
+		// Ease the delay towards where it should be, without drawing too much faster or slower than real time
+		if (lastSampleTime != 0 && now > lastSampleTime) {
+			double maxStep = MAX_TIME_WARP * (now - lastSampleTime);
+			delay += Math.max(-maxStep, Math.min(maxStep, targetDelay() - delay));
+		}
+		lastSampleTime = now;
+
+		// The server's time that should be drawn, which never goes backwards
+		double renderTime = Math.max(now - transit - delay, lastRenderTime);
+		lastRenderTime = renderTime;
+
+		if (renderTime >= frameTimes[newest]) {
+			// We've run out of frames, so hold on to the newest one until another arrives
+			if (heldTick == frameTicks[newest] && !redraw) {
+				return null;
+			}
+			heldTick = frameTicks[newest];
+			return frames[newest];
+		}
+		heldTick = -1;
+
+		// Find the oldest frame that's after the render time; the one before it is at or before the render time
+		int after = newest;
+		for (int i = 1; i < frameCount; i++) {
+			int index = (newest - i + BUFFER_LENGTH) % BUFFER_LENGTH;
+			if (frameTimes[index] <= renderTime) {
+				return interpolate(frames[index], frames[after], (renderTime - frameTimes[index]) / (frameTimes[after] - frameTimes[index]));
+			}
+			after = index;
+		}
+
+		// The render time is before every frame we have, which only happens right after they start arriving
+		return frames[after];
+	}
+
+	/**
+	 * Skips straight to the newest frame, and returns it, or returns null if it has already been drawn. Drawing carries
+	 * on from there, holding it until newer frames arrive.
+	 */
+	synchronized SimpleParticipant[] skipToNewest() {
+		if (frameCount == 0 || heldTick == frameTicks[newest]) {
+			return null;
+		}
+		lastRenderTime = frameTimes[newest];
+		heldTick = frameTicks[newest];
+		return frames[newest];
+	}
+
+	/**
+	 * Returns the tick that was last drawn, which may be partway between two ticks, rounded to the nearest one. Returns
+	 * -1 if nothing has been drawn since the buffer was last cleared.
+	 */
+	synchronized int getRenderTick() {
+		if (frameCount == 0 || lastRenderTime == Double.NEGATIVE_INFINITY) {
+			return -1;
+		}
+		double ticksBehind = Math.max(frameTimes[newest] - lastRenderTime, 0) / tickLength;
+		return Math.max(frameTicks[newest] - (int) Math.round(ticksBehind), 0);
+	}
+
+	/**
+	 * Returns how far behind the newest frames the view is being drawn, in milliseconds
+	 */
+	synchronized double getDelay() {
+		return Math.max(delay, 0) / 1000000.0;
+	}
+
+	/**
+	 * Returns how much frames' transit times usually change from one frame to the next, in milliseconds
+	 */
+	synchronized double getJitter() {
+		return jitter / 1000000.0;
+	}
+
+	/**
+	 * Returns the delay that the view should be drawn with, given how frames have been arriving
+	 */
+	private double targetDelay() {
+		return Math.min(spacing + JITTER_MARGIN * jitter, MAX_DELAY);
+	}
+
+	/**
+	 * Returns the participants the given fraction of the way from before to after
+	 */
+	private static SimpleParticipant[] interpolate(SimpleParticipant[] before, SimpleParticipant[] after, double fraction) {
+		if (before.length != after.length) {
+			return after;
+		}
+
+		SimpleParticipant[] participants = new SimpleParticipant[after.length];
+		for (int i = 0; i < after.length; i++) {
+			participants[i] = SimpleParticipant.interpolate(before[i], after[i], fraction);
+		}
+		return participants;
+	}
+}
@@ -0,0 +1,23 @@
+package controller;
+
+import controller.NetworkingLibrary.NetworkListener;
+
+/**
+ * The part of a {@link NetworkListener} that actually accepts clients. Like {@link Transport}, each
+ * {@link NetworkingLibrary.Backend} provides one of these, and every operation finishes by calling one of
+ * NetworkingLibrary's completion methods.
+ *
+ * @author Sam Thayer
+ */
+interface ListenerTransport {
+	/**
+	 * Waits for one client to connect. When finished, calls either NetworkingLibrary.acceptCompleted() with a
+	 * {@link Transport} for the new client, or NetworkingLibrary.acceptFailed().
+	 */
+	void accept(NetworkListener listener);
+
+	/**
+	 * Stops listening for clients.
+	 */
+	void close();
+}
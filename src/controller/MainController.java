@@ -16,7 +16,7 @@ import view.PetroglyphWindow;
  * 
  * @author Sam Thayer
  */
-public class MainController implements KeyEventDispatcher {
+public class MainController implements KeyEventDispatcher, ServerHost {
 	public static void main(String[] args) {
 		new MainController();
 	}
@@ -72,7 +72,7 @@ public class MainController implements KeyEventDispatcher {
 		gameIsActive = true;
 		localPlayerCount = 3;
 		GameUpdateHandler[] updateArray = new GameUpdateHandler[] { view };
-		gameEngine = new GameEngine(updateArray, startingLevel);
+		gameEngine = new GameEngine(updateArray, startingLevel, GameEngine.TICKS_PER_SECOND);
 		gameEngine.startRound();
 	}
 
@@ -86,13 +86,24 @@ public class MainController implements KeyEventDispatcher {
 	public boolean startServer(int localPlayerCount) {
 		this.localPlayerCount = localPlayerCount;
 		try {
-			this.server = new Server(window, this, localPlayerCount);
+			this.server = new Server(this, localPlayerCount);
 		} catch (IOException e) {
 			return false;
 		}
 		return true;
 	}
 
+	@Override
+	public void clientConnected(int clientsStillNeeded) {
+		window.newConnectionAsServer(clientsStillNeeded);
+	}
+
+	@Override
+	public void readyToLaunch() {
+		// The user launches the game from the gui, which calls startGameAsServer()
+		window.readyToLaunchAsServer();
+	}
+
 	/**
 	 * Attempts to connect to a server at the given host.
 	 */
@@ -115,7 +126,7 @@ public class MainController implements KeyEventDispatcher {
 	public void startGameAsServer(GameView view, int startingLevel) {
 		gameIsActive = true;
 		GameUpdateHandler[] updateArray = new GameUpdateHandler[] { view, server };
-		gameEngine = new GameEngine(updateArray, startingLevel);
+		gameEngine = new GameEngine(updateArray, startingLevel, GameEngine.TICKS_PER_SECOND);
 		gameEngine.startRound();
 	}
 
@@ -143,6 +154,7 @@ public class MainController implements KeyEventDispatcher {
 	/**
 	 * Closes all in-progress games and/or connections.
 	 */
+	@Override
 	public void lostConnection() {
 		if (gameEngine != null) {
 			gameEngine.close();
@@ -288,6 +300,7 @@ public class MainController implements KeyEventDispatcher {
 	/**
 	 * Has the identified caveman throw its spear if he is holding it.
 	 */
+	@Override
 	public void tryThrowSpear(int cavemanNumber) {
 		if (gameEngine != null)
 			gameEngine.tryThrowSpear(cavemanNumber);
@@ -295,9 +308,20 @@ public class MainController implements KeyEventDispatcher {
 			client.tryThrowSpear();
 	}
 
+	/**
+	 * Has the identified caveman throw its spear if he is holding it, for a remote player who is seeing the game the
+	 * given number of milliseconds late.
+	 */
+	@Override
+	public void tryThrowSpear(int cavemanNumber, int lagMillis) {
+		if (gameEngine != null)
+			gameEngine.tryThrowSpear(cavemanNumber, lagMillis);
+	}
+
 	/**
 	 * Has the identified caveman begin trying to move in the given direction.
 	 */
+	@Override
 	public void beginMovement(int cavemanNumber, Direction direction) {
 		if (gameEngine != null)
 			gameEngine.beginMovement(cavemanNumber, direction);
@@ -309,6 +333,7 @@ public class MainController implements KeyEventDispatcher {
 	/**
 	 * Has the identified caveman stop trying to move in the given direction.
 	 */
+	@Override
 	public void endMovement(int cavemanNumber, Direction direction) {
 		if (gameEngine != null)
 			gameEngine.endMovement(cavemanNumber, direction);
@@ -0,0 +1,279 @@
+package controller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the raw bytes that arrive on a {@link NetworkingLibrary.NetworkConnection} into complete messages. <br>
+ * Sockets read straight into this object's buffer (see readBuffer()), and complete messages are then found one at a
+ * time with nextMessage(). Only bytes that arrived since the last search are examined, and bytes that have already been
+ * handed out are never copied again, so the cost of framing a message does not depend on how much data is waiting behind
+ * it. <br>
+ * Messages can be framed in one of two ways: either they end with a terminator character, or they begin with a four
+ * byte length.
+ *
+ * @author Sam Thayer
+ */
+class MessageFramer {
+	/** The number of bytes used to store the length of a length-prefixed message */
+	static final int LENGTH_PREFIX_SIZE = 4;
+
+	/** The largest length-prefixed message that will be accepted. Anything longer must be a corrupted length. */
+	static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/** The pool that this framer's buffer came from, and will be returned to */
+	private final BufferPool pool;
+
+	/** The buffer that incoming bytes are stored in. Bytes in [start, buffer.position()) have not been handed out yet. */
+	private ByteBuffer buffer;
+
+	/** A read-only view of buffer that is used to hand out binary messages */
+	private ByteBuffer messageView;
+
+	/** The index of the first byte that has not been handed out in a message */
+	private int start;
+
+	/** The index of the first byte that has not yet been checked to see whether a terminator begins there */
+	private int scanned;
+
+	/** The index of the first byte of the message that nextMessage() most recently found */
+	private int messageStart;
+
+	/** The length of the message that nextMessage() most recently found */
+	private int messageLength;
+
+	/** The UTF-8 encoding of the character that ends each message, or null if messages are length-prefixed */
+	private byte[] terminator;
+
+	/** True if a length prefix was invalid, in which case the rest of the stream can't be trusted */
+	private boolean corrupted;
+
+	/** A reusable array for copying messages out of buffer when it isn't backed by one */
+	private byte[] scratch;
+
+	/** The smallest amount of free space that a socket read should be given */
+	private final int minimumReadSize;
+
+	/**
+	 * Creates a MessageFramer for messages that end with the given character
+	 *
+	 * @param pool
+	 *            The pool to borrow a buffer from
+	 * @param minimumReadSize
+	 *            The smallest amount of free space that a socket read should be given
+	 * @param messageTerminator
+	 *            The character that ends each message
+	 */
+	MessageFramer(BufferPool pool, int minimumReadSize, char messageTerminator) {
+		this(pool, minimumReadSize);
+		useTerminator(messageTerminator);
+	}
+
+	/**
+	 * Creates a MessageFramer for length-prefixed messages
+	 *
+	 * @param pool
+	 *            The pool to borrow a buffer from
+	 * @param minimumReadSize
+	 *            The smallest amount of free space that a socket read should be given
+	 */
+	MessageFramer(BufferPool pool, int minimumReadSize) {
+		this.pool = pool;
+		this.minimumReadSize = minimumReadSize;
+		this.buffer = pool.acquire();
+		this.messageView = buffer.asReadOnlyBuffer();
+		this.scratch = new byte[minimumReadSize];
+		this.start = 0;
+		this.scanned = 0;
+		this.terminator = null;
+		this.corrupted = false;
+	}
+
+	/**
+	 * Makes every message after the current one end with the given character
+	 */
+	void useTerminator(char messageTerminator) {
+		terminator = Character.toString(messageTerminator).getBytes(StandardCharsets.UTF_8);
+		scanned = start;
+	}
+
+	/**
+	 * Makes every message after the current one begin with its length
+	 */
+	void useLengthPrefix() {
+		terminator = null;
+		scanned = start;
+	}
+
+	/**
+	 * Returns a buffer that the next socket read should store its data in. The buffer's position marks where new data
+	 * should go, and it is guaranteed to have at least minimumReadSize bytes remaining.
+	 */
+	ByteBuffer readBuffer() {
+		int end = buffer.position();
+
+		if (start == end) {
+			// Everything has been handed out, so we can start over from the beginning for free
+			start = 0;
+			scanned = 0;
+			buffer.clear();
+		} else if (buffer.capacity() - end < minimumReadSize) {
+			// Only the unfinished message at the end needs to be kept around
+			if (start > 0) {
+				buffer.limit(end);
+				buffer.position(start);
+				buffer.compact();
+				scanned -= start;
+				start = 0;
+				end = buffer.position();
+			}
+
+			// If one message is bigger than the buffer, make room for it
+			if (buffer.capacity() - end < minimumReadSize) {
+				ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, end + minimumReadSize));
+				buffer.flip();
+				bigger.put(buffer);
+				pool.release(buffer);
+				buffer = bigger;
+				messageView = buffer.asReadOnlyBuffer();
+			}
+		}
+
+		buffer.limit(buffer.capacity());
+		return buffer;
+	}
+
+	/**
+	 * Looks for the next complete message that has arrived. If there is one, returns true, and the message can be
+	 * retrieved with messageAsString() or messageAsBuffer(). Otherwise returns false.
+	 */
+	boolean nextMessage() {
+		if (corrupted) {
+			return false;
+		}
+
+		if (terminator == null) {
+			return nextLengthPrefixedMessage();
+		} else {
+			return nextTerminatedMessage();
+		}
+	}
+
+	/**
+	 * Returns the message most recently found by nextMessage(), decoded from UTF-8. This doesn't include the message's
+	 * terminator or length.
+	 */
+	String messageAsString() {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + messageStart, messageLength, StandardCharsets.UTF_8);
+		}
+
+		if (scratch.length < messageLength) {
+			scratch = new byte[Math.max(messageLength, scratch.length * 2)];
+		}
+		messageAsBuffer().get(scratch, 0, messageLength);
+		return new String(scratch, 0, messageLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns a read-only view of the message most recently found by nextMessage(), which doesn't include its terminator
+	 * or length. The message is the data between the view's position and limit. The view is reused for every message, so
+	 * its contents are only valid until the next call to nextMessage() or readBuffer().
+	 */
+	ByteBuffer messageAsBuffer() {
+		messageView.limit(messageStart + messageLength);
+		messageView.position(messageStart);
+		return messageView;
+	}
+
+	/**
+	 * Returns true if the incoming data was found to be corrupted, in which case no more messages will be found.
+	 */
+	boolean isCorrupted() {
+		return corrupted;
+	}
+
+	/**
+	 * Returns the number of bytes that have been received but not yet handed out in a message
+	 */
+	int bufferedBytes() {
+		return buffer.position() - start;
+	}
+
+	/**
+	 * Returns the size of the buffer that incoming bytes are stored in
+	 */
+	int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Gives this framer's buffer back to its pool. After calling this, the framer should be considered useless.
+	 */
+	void release() {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+			messageView = null;
+		}
+	}
+
+	/**
+	 * A helper method for nextMessage() that finds messages ending with the terminator
+	 */
+	private boolean nextTerminatedMessage() {
+		int end = buffer.position();
+		int lastPossibleStart = end - terminator.length;
+
+		for (int i = scanned; i <= lastPossibleStart; i++) {
+			if (terminatorStartsAt(i)) {
+				messageStart = start;
+				messageLength = i - start;
+				start = i + terminator.length;
+				scanned = start;
+				return true;
+			}
+		}
+
+		// Remember where we stopped, so these bytes don't get checked again next time
+		scanned = Math.max(start, lastPossibleStart + 1);
+		return false;
+	}
+
+	/**
+	 * A helper method for nextMessage() that finds messages beginning with their length
+	 */
+	private boolean nextLengthPrefixedMessage() {
+		int available = buffer.position() - start;
+		if (available < LENGTH_PREFIX_SIZE) {
+			return false;
+		}
+
+		int length = buffer.getInt(start);
+		if (length < 0 || length > MAX_MESSAGE_SIZE) {
+			corrupted = true;
+			return false;
+		}
+		if (available < LENGTH_PREFIX_SIZE + length) {
+			return false;
+		}
+
+		messageStart = start + LENGTH_PREFIX_SIZE;
+		messageLength = length;
+		start = messageStart + length;
+		scanned = start;
+		return true;
+	}
+
+	/**
+	 * Returns true if the terminator appears in the buffer at the given index
+	 */
+	private boolean terminatorStartsAt(int index) {
+		for (int j = 0; j < terminator.length; j++) {
+			if (buffer.get(index + j) != terminator[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
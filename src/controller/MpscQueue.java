@@ -0,0 +1,106 @@
+package controller;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free queue that any number of threads can add to, but only one thread at a time can take from. <br>
+ * Elements are stored in fixed-size chunks that are linked together, so adding an element only allocates anything
+ * once per chunk. Producers claim a slot by incrementing the tail chunk's counter, then fill it in; the consumer walks
+ * the slots in order, and stops at the first one that hasn't been filled in yet, so elements always come out in the
+ * order their slots were claimed.
+ *
+ * @author Sam Thayer
+ */
+class MpscQueue<E> {
+	/** The number of elements in each chunk */
+	private static final int CHUNK_SIZE = 32;
+
+	/** The chunk that elements are currently being added to */
+	private final AtomicReference<Chunk<E>> tail;
+
+	/** The chunk that elements are currently being taken from. Only the consumer touches this. */
+	private Chunk<E> head;
+
+	/** The index in head of the next element to take. Only the consumer touches this. */
+	private int headIndex;
+
+	/**
+	 * Makes an empty queue
+	 */
+	MpscQueue() {
+		Chunk<E> first = new Chunk<E>();
+		this.tail = new AtomicReference<Chunk<E>>(first);
+		this.head = first;
+		this.headIndex = 0;
+	}
+
+	/**
+	 * Adds the given element to the end of the queue. This can be called from any thread. Elements may not be null.
+	 */
+	void offer(E element) {
+		while (true) {
+			Chunk<E> chunk = tail.get();
+			int index = chunk.claimed.getAndIncrement();
+			if (index < CHUNK_SIZE) {
+				chunk.slots.set(index, element);
+				return;
+			}
+
+			// This chunk is full, so make sure there's another after it, and help move the tail along to it
+			Chunk<E> next = chunk.next.get();
+			if (next == null) {
+				Chunk<E> fresh = new Chunk<E>();
+				next = chunk.next.compareAndSet(null, fresh) ? fresh : chunk.next.get();
+			}
+			tail.compareAndSet(chunk, next);
+		}
+	}
+
+	/**
+	 * Removes and returns the element at the front of the queue, or returns null if there isn't one yet. This may only be
+	 * called by the consumer.
+	 */
+	E poll() {
+		E element = peek();
+		if (element != null) {
+			// Let go of it, in case this chunk sticks around for a while
+			head.slots.lazySet(headIndex, null);
+			headIndex++;
+		}
+		return element;
+	}
+
+	/**
+	 * Returns the element at the front of the queue without removing it, or null if there isn't one yet. This may only be
+	 * called by the consumer.
+	 */
+	E peek() {
+		if (headIndex == CHUNK_SIZE) {
+			Chunk<E> next = head.next.get();
+			if (next == null) {
+				return null;
+			}
+			head = next;
+			headIndex = 0;
+		}
+		return head.slots.get(headIndex);
+	}
+
+	/**
+	 * One chunk of a queue
+	 *
+	 * @author Sam Thayer
+	 */
+	private static class Chunk<E> {
+		/** The elements in this chunk */
+		private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<E>(CHUNK_SIZE);
+
+		/** The number of slots that producers have claimed. This keeps counting past CHUNK_SIZE once the chunk is full. */
+		private final AtomicInteger claimed = new AtomicInteger(0);
+
+		/** The chunk after this one, or null if there isn't one yet */
+		private final AtomicReference<Chunk<E>> next = new AtomicReference<Chunk<E>>();
+	}
+}
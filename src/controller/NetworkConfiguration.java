@@ -0,0 +1,239 @@
+package controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.ThreadFactory;
+
+import controller.NetworkingLibrary.Backend;
+
+/**
+ * Settings for the servers and connections that {@link NetworkingLibrary} opens: which port and address to use, which
+ * socket options to set, and how many threads the asynchronous backend gets. A new configuration has the same settings
+ * the library has always used, except that Nagle's algorithm is turned off, since it holds small messages back for tens
+ * of milliseconds. <br>
+ * Each setter returns the configuration, so they can be chained. A configuration can be shared by any number of servers
+ * and connections, but shouldn't be changed once it has been used.
+ *
+ * @author Sam Thayer
+ */
+public class NetworkConfiguration {
+	/** The backend to use, or null to use whatever the library is using */
+	private Backend backend;
+
+	/** The address to listen on, or null to listen on every address */
+	private String bindAddress;
+
+	/** The port that servers listen on, and that connections connect to */
+	private int port;
+
+	/** Whether TCP_NODELAY is set on connections */
+	private boolean tcpNoDelay;
+
+	/** Whether SO_KEEPALIVE is set on connections */
+	private boolean keepAlive;
+
+	/** The SO_SNDBUF size for connections, or 0 to leave it up to the system */
+	private int sendBufferSize;
+
+	/** The SO_RCVBUF size for connections, or 0 to leave it up to the system */
+	private int receiveBufferSize;
+
+	/** The number of threads in the asynchronous backend's channel group, or 0 to use the JVM's default group */
+	private int channelThreads;
+
+	/** Whether frames may be sent as datagrams */
+	private boolean datagramsEnabled;
+
+	/** The channel group made for channelThreads, or null if it hasn't been made yet */
+	private AsynchronousChannelGroup channelGroup;
+
+	/**
+	 * Makes a configuration with the default settings
+	 */
+	public NetworkConfiguration() {
+		this.backend = null;
+		this.bindAddress = null;
+		this.port = NetworkingLibrary.DEFAULT_PORT;
+		this.tcpNoDelay = true;
+		this.keepAlive = false;
+		this.sendBufferSize = 0;
+		this.receiveBufferSize = 0;
+		this.channelThreads = 0;
+		this.datagramsEnabled = NetworkingLibrary.DATAGRAMS_ENABLED;
+	}
+
+	/**
+	 * Sets the backend to use. Null, the default, means whichever one the library is set to use when the server or
+	 * connection is opened.
+	 */
+	public NetworkConfiguration setBackend(Backend backend) {
+		this.backend = backend;
+		return this;
+	}
+
+	/**
+	 * Sets the host name or IP address that servers listen on. Null, the default, means every address this machine has.
+	 */
+	public NetworkConfiguration setBindAddress(String bindAddress) {
+		this.bindAddress = bindAddress;
+		return this;
+	}
+
+	/**
+	 * Sets the port that servers listen on, and that connections connect to. The default is
+	 * {@link NetworkingLibrary#DEFAULT_PORT}. A server may use port 0 to get whichever port is free.
+	 */
+	public NetworkConfiguration setPort(int port) {
+		if (port < 0 || port > 0xFFFF) {
+			throw new IllegalArgumentException("Ports must be between 0 and 65535.");
+		}
+		this.port = port;
+		return this;
+	}
+
+	/**
+	 * Sets whether connections send small messages right away (true, the default) or let the system collect them into
+	 * bigger packets first
+	 */
+	public NetworkConfiguration setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	/**
+	 * Sets whether the system should check on connections that have been quiet for a long time. This is off by default.
+	 */
+	public NetworkConfiguration setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	/**
+	 * Sets the size, in bytes, of each connection's outgoing socket buffer. 0, the default, leaves it up to the system.
+	 */
+	public NetworkConfiguration setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("Buffer sizes can't be negative.");
+		}
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	/**
+	 * Sets the size, in bytes, of each connection's incoming socket buffer. 0, the default, leaves it up to the system.
+	 */
+	public NetworkConfiguration setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0) {
+			throw new IllegalArgumentException("Buffer sizes can't be negative.");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads that run the callbacks for servers and connections opened with this configuration, when
+	 * they use the asynchronousChannels backend. Those threads are shared by everything opened with this configuration.
+	 * 0, the default, uses the JVM's default thread pool, which is shared with everything else.
+	 */
+	public NetworkConfiguration setChannelThreads(int channelThreads) {
+		if (channelThreads < 0) {
+			throw new IllegalArgumentException("The number of threads can't be negative.");
+		}
+		this.channelThreads = channelThreads;
+		return this;
+	}
+
+	/**
+	 * Sets whether a server offers to send frames as datagrams, and whether a client accepts the offer. The default is
+	 * true, unless the petroglyph.datagram.enabled property is false.
+	 */
+	public NetworkConfiguration setDatagramsEnabled(boolean datagramsEnabled) {
+		this.datagramsEnabled = datagramsEnabled;
+		return this;
+	}
+
+	/**
+	 * Returns the backend that should be used right now
+	 */
+	Backend getBackend() {
+		return backend == null ? NetworkingLibrary.getBackend() : backend;
+	}
+
+	/**
+	 * Returns the port that servers listen on, and that connections connect to
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns whether frames may be sent as datagrams
+	 */
+	public boolean isDatagramsEnabled() {
+		return datagramsEnabled;
+	}
+
+	/**
+	 * Returns the address that servers should listen on
+	 */
+	InetSocketAddress getBindAddress() {
+		return getBindAddress(port);
+	}
+
+	/**
+	 * Returns the address that servers should listen on, but with the given port instead
+	 */
+	InetSocketAddress getBindAddress(int port) {
+		if (bindAddress == null) {
+			return new InetSocketAddress(port);
+		}
+		return new InetSocketAddress(bindAddress, port);
+	}
+
+	/**
+	 * Returns the channel group that asynchronous channels should be opened in, or null for the default group
+	 */
+	synchronized AsynchronousChannelGroup getChannelGroup() throws IOException {
+		if (channelThreads == 0) {
+			return null;
+		}
+		if (channelGroup == null) {
+			channelGroup = AsynchronousChannelGroup.withFixedThreadPool(channelThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "Petroglyph channel group");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return channelGroup;
+	}
+
+	/**
+	 * Sets this configuration's options on the given connection's socket
+	 */
+	void configureConnection(NetworkChannel channel) throws IOException {
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		if (sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+	}
+
+	/**
+	 * Sets this configuration's options on the given server socket, before it is bound. Only the receive buffer size
+	 * matters here; the system gives it to the connections that are accepted, which is too late to set it on them.
+	 */
+	void configureListener(NetworkChannel channel) throws IOException {
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+	}
+}
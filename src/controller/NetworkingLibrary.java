@@ -5,14 +5,24 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -30,18 +40,101 @@ import java.util.concurrent.locks.ReentrantLock;
  * stop trying to use this connection. Second, use DataBuffer. All incoming messages will be stuck onto the end of it;
  * they only way they come off is if you remove them. You should have a well defined message protocol, so it's up to you
  * to parse messages and remove them from DataBuffer. The ExampleChatServer and ExampleChatClient both show how to do
- * these things.
+ * these things. <br>
+ * <br>
+ * Alongside connections, there are datagram endpoints, which send unreliable messages that may be lost but never hold
+ * each other up. They're meant for data like snapshots, where a lost message is better skipped than waited for. For
+ * testing, outgoing datagrams can be dropped and delayed on purpose with the system properties petroglyph.datagram.loss
+ * (the fraction to drop), petroglyph.datagram.latency and petroglyph.datagram.jitter (the fixed and random parts of the
+ * delay, in milliseconds). <br>
+ * <br>
+ * Connections can be run by different {@link Backend}s, which are chosen with useBackend(). The backend only changes
+ * which threads do the work and call the callbacks; everything else behaves the same either way. The backend, port,
+ * socket options and threads can also be chosen separately for each server or connection by opening it with a
+ * {@link NetworkConfiguration}.
  * 
  * @Author Sam Thayer
  */
 public class NetworkingLibrary {
 
-	/** The port for communications to use */
+	/** The port for communications to use, unless a {@link NetworkConfiguration} says otherwise */
 	public static final int DEFAULT_PORT = 11000;
 
-	/** The space available for short-term message storing */
+	/** The least amount of space that a socket read is given for storing incoming data */
 	private static final int BUFFER_SIZE = 1024;
 
+	/** The size of the direct buffers that connections borrow for storing incoming data */
+	private static final int POOLED_BUFFER_SIZE = 16 * 1024;
+
+	/** The most unused buffers that will be kept around for future connections */
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	/** The number of messages that a connection should initially have room for in a single write */
+	private static final int INITIAL_WRITE_BATCH_SIZE = 16;
+
+	/** The most messages that are handed to the socket in a single write. Anything past this waits for the next one. */
+	private static final int MAX_WRITE_BATCH_SIZE = 1024;
+
+	/**
+	 * Every snapshot's place in a connection's normal send queue is held by its own duplicate of this. The snapshot itself
+	 * waits in the connection's pendingSnapshot, along with its marker, so that a newer one can replace it without
+	 * touching the queue. Markers are the only empty buffers in the queue, since every framed message has a terminator or
+	 * a length.
+	 */
+	private static final ByteBuffer SNAPSHOT_MARKER = ByteBuffer.allocate(0);
+
+	/**
+	 * The largest message that can be sent in a datagram. Bigger datagrams would risk being split up by the network, and
+	 * losing any piece loses the whole thing.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 1200;
+
+	/** The number of bytes at the start of each datagram that hold its sequence number */
+	private static final int SEQUENCE_NUMBER_SIZE = 4;
+
+	/** The most datagrams to take from one endpoint before checking on the others */
+	private static final int MAX_DATAGRAMS_PER_RECEIVE = 16;
+
+	/** The fraction of outgoing datagrams to drop on purpose, for testing */
+	private static final double DATAGRAM_LOSS = Double.parseDouble(System.getProperty("petroglyph.datagram.loss", "0"));
+
+	/** The number of milliseconds to delay every outgoing datagram by, for testing */
+	private static final long DATAGRAM_LATENCY = Long.parseLong(System.getProperty("petroglyph.datagram.latency", "0"));
+
+	/** The most extra milliseconds to randomly delay each outgoing datagram by, for testing. This can reorder them. */
+	private static final long DATAGRAM_JITTER = Long.parseLong(System.getProperty("petroglyph.datagram.jitter", "0"));
+
+	/**
+	 * Whether new {@link NetworkConfiguration}s let servers and clients send frames as datagrams. Setting the
+	 * petroglyph.datagram.enabled property to false keeps everything on the connections.
+	 */
+	static final boolean DATAGRAMS_ENABLED = Boolean.parseBoolean(System.getProperty("petroglyph.datagram.enabled", "true"));
+
+	/**
+	 * How urgently a message needs to get to the other end of its connection. Urgent messages are sent ahead of any normal
+	 * messages (and snapshots) that haven't been handed to the socket yet, so they don't have to wait behind bulk traffic.
+	 * Messages of the same priority always arrive in the order they were sent.
+	 */
+	public enum MessagePriority {
+		urgent, normal
+	}
+
+	/**
+	 * The ways that connections can do their IO.
+	 * <ul>
+	 * <li>asynchronousChannels: Asynchronous channels on the JVM's default thread pool. Callbacks can come from any of the
+	 * pool's threads.</li>
+	 * <li>selectorLoops: One thread per processor, each running a selector for its share of the connections. Everything
+	 * that happens to a connection, including all of its callbacks, happens on the same thread.</li>
+	 * <li>blockingThreads: Plain blocking IO, with a thread for each connection's reads and another for its writes.
+	 * Callbacks for a connection's messages all come from its reading thread. The threads are virtual if the JVM supports
+	 * them.</li>
+	 * </ul>
+	 */
+	public enum Backend {
+		asynchronousChannels, selectorLoops, blockingThreads
+	}
+
 	/**
 	 * An object that can be used to process updates to SocketConnections
 	 * 
@@ -62,6 +155,52 @@ public class NetworkingLibrary {
 		public void connectionUpdate(NetworkConnection connection, boolean success, String message);
 	}
 
+	/**
+	 * An object that can be used to process updates to SocketConnections without decoding the messages into Strings
+	 * 
+	 * @author Sam Thayer
+	 */
+	public interface NetworkBinaryUpdateHandler {
+		/**
+		 * Handles updates to a previously established connection.
+		 * 
+		 * @param connection
+		 *            A {@link NetworkConnection} associated to this callback
+		 * @param success
+		 *            Whether or not this connection has ended.
+		 * @param message
+		 *            A read-only view of the message sent from the connection. The message is the data between the view's
+		 *            position and limit, and does not contain the terminator or length that framed it. The view is only valid
+		 *            until this method returns, so anything that needs to be kept must be copied out. If success is false,
+		 *            message is null.
+		 */
+		public void binaryConnectionUpdate(NetworkConnection connection, boolean success, ByteBuffer message);
+	}
+
+	/**
+	 * An object that can be used to process datagrams
+	 * 
+	 * @author Sam Thayer
+	 */
+	public interface NetworkDatagramHandler {
+		/**
+		 * Handles a datagram that arrived on an endpoint. Datagrams may be lost, but any datagram from a peer (see
+		 * addDatagramPeer()) that arrives after a newer one from the same peer is dropped rather than passed on, so a peer's
+		 * datagrams are never seen out of order. Datagrams from anywhere else are passed on as they come. This is called
+		 * from the one thread that receives datagrams for every endpoint, so it should return quickly.
+		 * 
+		 * @param endpoint
+		 *            The {@link NetworkDatagramEndpoint} that received the datagram
+		 * @param source
+		 *            The address that the datagram came from
+		 * @param message
+		 *            A read-only view of the message that was sent. The message is the data between the view's position and
+		 *            limit. The view is only valid until this method returns, so anything that needs to be kept must be
+		 *            copied out.
+		 */
+		public void datagramUpdate(NetworkDatagramEndpoint endpoint, InetSocketAddress source, ByteBuffer message);
+	}
+
 	/**
 	 * An object that can be used to process new clients
 	 * 
@@ -88,6 +227,21 @@ public class NetworkingLibrary {
 	/** The only instance of the NetworkingLibrary object */
 	private static NetworkingLibrary instance = new NetworkingLibrary();
 
+	/** The pool that connections borrow their read buffers from */
+	private static final BufferPool readBufferPool = new BufferPool(POOLED_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+	/** Sends datagrams that are being delayed on purpose. This is only created if a delay is set. */
+	private static ScheduledExecutorService datagramDelayer;
+
+	/** Receives datagrams for every endpoint. This is only created once the first endpoint is opened. */
+	private static datagramReceiver datagramReceiver;
+
+	/** Decides which datagrams get dropped or delayed on purpose */
+	private static final Random datagramShimRandom = new Random();
+
+	/** The backend that new servers and connections use */
+	private static volatile Backend backend = Backend.valueOf(System.getProperty("petroglyph.network.backend", Backend.asynchronousChannels.name()));
+
 	/** Creates a NetworkingLibrary object */
 	private NetworkingLibrary() {
 		// There is nothing to do, this is just so instance can work as explained
@@ -118,6 +272,22 @@ public class NetworkingLibrary {
 		}
 	}
 
+	/**
+	 * Makes every server and connection opened from now on use the given backend. Ones that are already open keep using
+	 * whatever they started with, and clients of a server always use the same backend as the server. The default can also
+	 * be set with the system property petroglyph.network.backend.
+	 */
+	public static void useBackend(Backend newBackend) {
+		backend = newBackend;
+	}
+
+	/**
+	 * Returns the backend that servers and connections opened from now on will use.
+	 */
+	public static Backend getBackend() {
+		return backend;
+	}
+
 	/**
 	 * Starts a server that will wait for clients to connect. The method an object representing the connecting, unless there
 	 * is an IO problem in which case it returns null.
@@ -137,10 +307,45 @@ public class NetworkingLibrary {
 	 *            message passed to NetworkLibrary.send
 	 */
 	public static NetworkListener openServer(NetworkConnectionHandler handler, char messageTerminator) {
+		return openServer(handler, messageTerminator, false, new NetworkConfiguration());
+	}
+
+	/**
+	 * Starts a server that will wait for clients to connect, just like openServer(handler, messageTerminator), except that
+	 * the server and its clients are set up the way the given configuration says.
+	 */
+	public static NetworkListener openServer(NetworkConnectionHandler handler, char messageTerminator, NetworkConfiguration configuration) {
+		return openServer(handler, messageTerminator, false, configuration);
+	}
+
+	/**
+	 * Starts a server that will wait for clients to connect, just like openServer(), except that messages on its connections
+	 * are framed by their length instead of a terminator. This means they can contain any data at all, and can be sent as
+	 * {@link ByteBuffer}s as well as Strings.
+	 * 
+	 * @param handler
+	 *            A functor to notify when a client connects.
+	 */
+	public static NetworkListener openBinaryServer(NetworkConnectionHandler handler) {
+		return openServer(handler, (char) 0, true, new NetworkConfiguration());
+	}
+
+	/**
+	 * Starts a server whose messages are framed by their length, just like openBinaryServer(handler), except that the
+	 * server and its clients are set up the way the given configuration says.
+	 */
+	public static NetworkListener openBinaryServer(NetworkConnectionHandler handler, NetworkConfiguration configuration) {
+		return openServer(handler, (char) 0, true, configuration);
+	}
+
+	/**
+	 * A helper method for openServer() and openBinaryServer()
+	 */
+	private static NetworkListener openServer(NetworkConnectionHandler handler, char messageTerminator, boolean lengthPrefixed,
+			NetworkConfiguration configuration) {
 		try {
-			AsynchronousServerSocketChannel listener = AsynchronousServerSocketChannel.open();
-			NetworkListener listenerState = instance.new NetworkListener(listener, handler, messageTerminator);
-			listener.bind(new InetSocketAddress(DEFAULT_PORT));
+			ListenerTransport listener = openListenerTransport(configuration);
+			NetworkListener listenerState = instance.new NetworkListener(listener, handler, messageTerminator, lengthPrefixed);
 			// It's called 'resume' because that's how it will be used by outside classes
 			resumeAcceptingClients(listenerState);
 
@@ -150,6 +355,34 @@ public class NetworkingLibrary {
 		}
 	}
 
+	/**
+	 * A helper method that makes a listener transport for the given configuration's backend
+	 */
+	private static ListenerTransport openListenerTransport(NetworkConfiguration configuration) throws IOException {
+		switch (configuration.getBackend()) {
+		case selectorLoops:
+			return new SelectorListenerTransport(configuration);
+		case blockingThreads:
+			return new BlockingListenerTransport(configuration);
+		default:
+			return new AsynchronousListenerTransport(configuration);
+		}
+	}
+
+	/**
+	 * A helper method that makes an unconnected transport for the given configuration's backend
+	 */
+	private static Transport openTransport(NetworkConfiguration configuration) throws IOException {
+		switch (configuration.getBackend()) {
+		case selectorLoops:
+			return new SelectorTransport(configuration);
+		case blockingThreads:
+			return new BlockingTransport(configuration);
+		default:
+			return new AsynchronousTransport(configuration);
+		}
+	}
+
 	/**
 	 * Makes the given {@link NetworkListener} resume accepting clients.
 	 * 
@@ -159,37 +392,37 @@ public class NetworkingLibrary {
 	 * If there is an error while listening, the {@link NetworkListener}'s handler will be notified.
 	 */
 	public static void resumeAcceptingClients(NetworkListener listenerState) {
-		listenerState.listener.accept(listenerState, new CompletionHandler<AsynchronousSocketChannel, NetworkListener>() {
-			@Override
-			public void completed(AsynchronousSocketChannel result, NetworkListener listenerState) {
-				if (!listenerState.isValid) {
-					return;
-				}
+		listenerState.listener.accept(listenerState);
+	}
 
-				NetworkConnection socketState = instance.new NetworkConnection(result, listenerState.messageTerminator);
-				listenerState.callMe.initialConnectionUpdate(socketState, true);
-			}
+	/**
+	 * Called by a {@link ListenerTransport} when a client has connected
+	 */
+	static void acceptCompleted(NetworkListener listenerState, Transport client) {
+		if (!listenerState.isValid) {
+			client.close();
+			return;
+		}
 
-			@Override
-			public void failed(Throwable exc, NetworkListener listenerState) {
-				if (listenerState.isValid) {
-					listenerState.callMe.initialConnectionUpdate(null, false);
-				}
-			}
-		});
+		NetworkConnection socketState = instance.new NetworkConnection(client, listenerState.messageTerminator, listenerState.lengthPrefixed);
+		listenerState.callMe.initialConnectionUpdate(socketState, true);
+	}
+
+	/**
+	 * Called by a {@link ListenerTransport} when accepting a client has failed
+	 */
+	static void acceptFailed(NetworkListener listenerState) {
+		if (listenerState.isValid) {
+			listenerState.callMe.initialConnectionUpdate(null, false);
+		}
 	}
 
 	/**
 	 * Closes the given listener. After calling this, you should consider the given NetworkListener to be useless.
 	 */
 	public static void closeListener(NetworkListener listener) {
-		try {
-			listener.isValid = false;
-			listener.listener.close();
-		} catch (IOException e) {
-			// This might be a bad choice, but let's just ignore the exception. If it won't
-			// let me close the listener there's not much I can do.
-		}
+		listener.isValid = false;
+		listener.listener.close();
 	}
 
 	/**
@@ -204,209 +437,1068 @@ public class NetworkingLibrary {
 	 *            message passed to NetworkLibrary.send
 	 */
 	public static void connectToServer(NetworkConnectionHandler handler, String hostName, char messageTerminator) {
+		connectToServer(handler, hostName, messageTerminator, false, new NetworkConfiguration());
+	}
+
+	/**
+	 * Creates a connection for communicating with a server, just like connectToServer(handler, hostName,
+	 * messageTerminator), except that it connects to the configuration's port and is set up the way the configuration
+	 * says.
+	 */
+	public static void connectToServer(NetworkConnectionHandler handler, String hostName, char messageTerminator,
+			NetworkConfiguration configuration) {
+		connectToServer(handler, hostName, messageTerminator, false, configuration);
+	}
+
+	/**
+	 * Creates a connection for communicating with a server that was started with openBinaryServer().
+	 * 
+	 * @param handler
+	 *            A functor to be used when a connection is made
+	 * @param hostName
+	 *            The name of the server to connect to
+	 */
+	public static void connectToBinaryServer(NetworkConnectionHandler handler, String hostName) {
+		connectToServer(handler, hostName, (char) 0, true, new NetworkConfiguration());
+	}
+
+	/**
+	 * Creates a connection for communicating with a server that was started with openBinaryServer(), just like
+	 * connectToBinaryServer(handler, hostName), except that it connects to the configuration's port and is set up the
+	 * way the configuration says.
+	 */
+	public static void connectToBinaryServer(NetworkConnectionHandler handler, String hostName, NetworkConfiguration configuration) {
+		connectToServer(handler, hostName, (char) 0, true, configuration);
+	}
+
+	/**
+	 * A helper method for connectToServer() and connectToBinaryServer()
+	 */
+	private static void connectToServer(NetworkConnectionHandler handler, String hostName, char messageTerminator, boolean lengthPrefixed,
+			NetworkConfiguration configuration) {
 		try {
-			AsynchronousSocketChannel client = AsynchronousSocketChannel.open();
-			InetSocketAddress hostAddress = new InetSocketAddress(hostName, DEFAULT_PORT);
+			InetSocketAddress hostAddress = new InetSocketAddress(hostName, configuration.getPort());
 
 			if (hostAddress.isUnresolved()) {
 				handler.initialConnectionUpdate(null, false);
 				return;
 			}
 
-			NetworkConnection connectionState = instance.new NetworkConnection(client, messageTerminator);
+			Transport client = openTransport(configuration);
+			NetworkConnection connectionState = instance.new NetworkConnection(client, messageTerminator, lengthPrefixed);
 			connectionState.connectionCallback = handler;
-			client.connect(hostAddress, connectionState, new CompletionHandler<Void, NetworkConnection>() {
-				@Override
-				public void completed(Void result, NetworkConnection connectionState) {
-					// If, in between the user's call to getData and this callback being triggered,
-					// the user called closeConnection, ignore this message
-					if (connectionState.isValid) {
-						connectionState.connectionCallback.initialConnectionUpdate(connectionState, true);
-					}
-
-				}
-
-				@Override
-				public void failed(Throwable exc, NetworkConnection attachment) {
-					// If, in between the user's call to getData and this callback being triggered,
-					// the user called closeConnection, ignore this message
-					if (connectionState.isValid) {
-						connectionState.connectionCallback.initialConnectionUpdate(null, false);
-					}
-				}
-
-			});
+			client.connect(hostAddress, connectionState);
 		} catch (IOException e) {
 			handler.initialConnectionUpdate(null, false);
 			return;
 		}
 	}
 
+	/**
+	 * Called by a {@link Transport} when it has connected to a server
+	 */
+	static void connectCompleted(NetworkConnection connectionState) {
+		// If, in between the user's call to getData and this callback being triggered,
+		// the user called closeConnection, ignore this message
+		if (connectionState.isValid) {
+			connectionState.connectionCallback.initialConnectionUpdate(connectionState, true);
+		}
+	}
+
+	/**
+	 * Called by a {@link Transport} when connecting to a server has failed
+	 */
+	static void connectFailed(NetworkConnection connectionState) {
+		// If, in between the user's call to getData and this callback being triggered,
+		// the user called closeConnection, ignore this message
+		if (connectionState.isValid) {
+			connectionState.connectionCallback.initialConnectionUpdate(null, false);
+		}
+	}
+
 	/**
 	 * Tells the given socket to listen for data from its connection. When data is received, callback will be called.
 	 */
 	public static void getData(NetworkConnection connection, NetworkUpdateHandler callback) {
 		connection.messageCallback = callback;
+		connection.binaryMessageCallback = null;
+		requestRead(connection);
+	}
+
+	/**
+	 * Tells the given socket to listen for data from its connection, just like getData(), except that the callback is
+	 * given a view of each message's bytes instead of a String.
+	 */
+	public static void getBinaryData(NetworkConnection connection, NetworkBinaryUpdateHandler callback) {
+		connection.binaryMessageCallback = callback;
+		connection.messageCallback = null;
+		requestRead(connection);
+	}
+
+	/**
+	 * Switches a connection that frames messages with a terminator over to framing them by length, so that it behaves
+	 * exactly like a connection from openBinaryServer() or connectToBinaryServer(). This lets two programs agree on the
+	 * binary format after connecting, and fall back to the terminator if they don't. <br>
+	 * Incoming messages are affected starting with the first one after the message currently being handed out, so this
+	 * should be called either from a callback given to getData() or getBinaryData(), or before either is first called.
+	 * Outgoing messages are affected starting with the next one sent, so this should not be called while another thread
+	 * is sending on the same connection.
+	 */
+	public static void useLengthPrefixedFraming(NetworkConnection connection) {
+		connection.framer.useLengthPrefix();
+		connection.lengthPrefixed = true;
+	}
+
+	/**
+	 * Returns true if the given connection frames messages by their length, meaning it can send and receive binary
+	 * messages.
+	 */
+	public static boolean isLengthPrefixed(NetworkConnection connection) {
+		return connection.lengthPrefixed;
+	}
 
+	/**
+	 * A helper method that makes sure the given connection is reading, now that the user has asked for more data
+	 */
+	private static void requestRead(NetworkConnection connection) {
 		connection.readLock.lock();
-		if (!connection.isReading) {
+		connection.readRequested = true;
+		// If a read is already in progress (or its messages are still being handed out), it will pick up this request
+		// when it's finished
+		if (!connection.isReading && connection.isValid) {
 			connection.isReading = true;
-			connection.socket.read(connection.tempBuffer, connection, instance.new readHelper());
+			startRead(connection);
 		}
 		connection.readLock.unlock();
 	}
 
-	/** A helper class to accept callbacks from socket reads */
-	private class readHelper implements CompletionHandler<Integer, NetworkConnection> {
-		@Override
-		public void completed(Integer result, NetworkConnection connectionState) {
+	/**
+	 * A helper method that has the socket read more data into the connection's framing buffer
+	 */
+	private static void startRead(NetworkConnection connection) {
+		connection.transport.read(connection.framer.readBuffer(), connection);
+	}
+
+	/**
+	 * Called by a {@link Transport} when a read has finished
+	 */
+	static void readCompleted(NetworkConnection connectionState, int result) {
+		// If, in between the user's call to getData and this callback being triggered,
+		// the user called closeConnection, ignore this message
+		if (!connectionState.isValid) {
+			stopReading(connectionState);
+			return;
+		}
+
+		// If the connection is closing:
+		if (result == -1) {
+			connectionState.isValid = false;
+			stopReading(connectionState);
+			notifyFailure(connectionState);
+			return;
+		}
+
+		long readTime = System.nanoTime();
+		connectionState.bytesReceived += result;
+
+		// The new data is already in the framer's buffer, so hand out every message that it completed. isReading
+		// stays true in the meantime so that calls to getData from the callback don't start a second read into the
+		// same buffer.
+		MessageFramer framer = connectionState.framer;
+		while (connectionState.isValid && framer.nextMessage()) {
 			connectionState.readLock.lock();
-			connectionState.isReading = false;
+			connectionState.readRequested = false;
 			connectionState.readLock.unlock();
 
-			// If, in between the user's call to getData and this callback being triggered,
-			// the user called closeConnection, ignore this message
-			if (!connectionState.isValid) {
-				return;
+			long dispatchDelay = System.nanoTime() - readTime;
+			connectionState.messagesReceived++;
+			connectionState.totalDispatchDelay += dispatchDelay;
+			if (dispatchDelay > connectionState.longestDispatchDelay) {
+				connectionState.longestDispatchDelay = dispatchDelay;
 			}
 
-			// If the connection is closing:
-			if (result == -1) {
-				connectionState.isValid = false;
-				connectionState.messageCallback.connectionUpdate(connectionState, false, null);
-				return;
+			if (connectionState.binaryMessageCallback != null) {
+				connectionState.binaryMessageCallback.binaryConnectionUpdate(connectionState, true, framer.messageAsBuffer());
+			} else {
+				connectionState.messageCallback.connectionUpdate(connectionState, true, framer.messageAsString());
 			}
-			// Otherwise, get the message out of tempBuffer and into a better spot:
-			connectionState.tempBuffer.flip();
-			connectionState.largeBuffer.append(StandardCharsets.UTF_8.decode(connectionState.tempBuffer).toString());
-			connectionState.tempBuffer.clear();
-
-			// Now search through the large buffer to see if there is a complete message (or
-			// even more than one) and if so, notify the user
-			String data = connectionState.largeBuffer.toString();
-			while (data.contains(Character.toString(connectionState.messageTerminator))) {
-				int indexOfEndOfMessageChar = data.indexOf(connectionState.messageTerminator);
-				String oneCompleteMessage = data.substring(0, indexOfEndOfMessageChar);
-				data = data.substring(indexOfEndOfMessageChar + 1, data.length());
-				connectionState.messageCallback.connectionUpdate(connectionState, true, oneCompleteMessage);
-			}
-			connectionState.largeBuffer = new StringBuilder(data);
 		}
 
-		@Override
-		public void failed(Throwable exc, NetworkConnection connectionState) {
-			connectionState.readLock.lock();
-			connectionState.isReading = false;
-			connectionState.readLock.unlock();
+		// If a message's length made no sense, there's no way to find where the next one starts
+		if (connectionState.isValid && framer.isCorrupted()) {
+			connectionState.isValid = false;
+			stopReading(connectionState);
+			notifyFailure(connectionState);
+			return;
+		}
+
+		// The framer belongs to whoever is reading, so its numbers are copied out for getStatistics()
+		connectionState.framingBufferSize = framer.capacity();
+		connectionState.framingBufferedBytes = framer.bufferedBytes();
 
+		// Keep reading if the user asked for more data, or if we haven't given them anything yet
+		connectionState.readLock.lock();
+		if (connectionState.readRequested && connectionState.isValid) {
+			startRead(connectionState);
+		} else {
+			connectionState.isReading = false;
 			if (!connectionState.isValid) {
-				return;
+				connectionState.framer.release();
 			}
-			connectionState.messageCallback.connectionUpdate(connectionState, false, null);
 		}
+		connectionState.readLock.unlock();
 	}
 
 	/**
-	 * Sends the given data across the given connection.
+	 * Called by a {@link Transport} when a read has failed
 	 */
-	public static void send(NetworkConnection connection, String data) {
-		connection.sendLock.lock();
-		// This method doesn't actually send messages, it only adds them to the
-		// messagesToSend queue and starts up sendNextMessage()
-		connection.messagesToSend.add(data);
+	static void readFailed(NetworkConnection connectionState) {
+		stopReading(connectionState);
 
-		if (connection.messagesToSend.size() == 1) {
-			sendNextMessage(connection);
+		if (!connectionState.isValid) {
+			return;
 		}
-		connection.sendLock.unlock();
+		notifyFailure(connectionState);
 	}
 
 	/**
-	 * A Helper method that will send messages one at a time until connection has no messages left to send.
+	 * A helper method that marks the given connection as no longer reading. If the connection has been closed, nothing
+	 * will read into its buffer again, so the buffer goes back to the pool.
 	 */
-	private static void sendNextMessage(NetworkConnection connection) {
-		// don't remove from the queue until the send has finished
-		String data = connection.messagesToSend.peek();
-		ByteBuffer message = StandardCharsets.UTF_8.encode(data + connection.messageTerminator);
-		connection.socket.write(message, connection, new CompletionHandler<Integer, NetworkConnection>() {
-			@Override
-			public void completed(Integer result, NetworkConnection connectionState) {
-				connectionState.sendLock.lock();
-				// now we can remove the message:
-				connectionState.messagesToSend.poll();
-				// and possibly start the next:
-				if (!connectionState.messagesToSend.isEmpty()) {
-					sendNextMessage(connectionState);
-				}
-				connectionState.sendLock.unlock();
-			}
-
-			@Override
-			public void failed(Throwable exc, NetworkConnection connectionState) {
-				// Normally the user doesn't care about confirmation that messages sent, but if
-				// one failed they should know
-				if (connectionState.isValid) {
-					connectionState.messageCallback.connectionUpdate(connectionState, false, null);
-				}
-			}
-		});
+	private static void stopReading(NetworkConnection connectionState) {
+		connectionState.readLock.lock();
+		connectionState.isReading = false;
+		if (!connectionState.isValid) {
+			connectionState.framer.release();
+		}
+		connectionState.readLock.unlock();
 	}
 
 	/**
-	 * Closes a {@link NetworkConnection}. After calling this method, the given {@link NetworkConnection} should be
-	 * considered useless.
+	 * A helper method that tells the user that the given connection has failed, using whichever callback they gave to
+	 * getData() or getBinaryData()
 	 */
-	public static void closeConnection(NetworkConnection connection) {
-		try {
-			connection.isValid = false;
-			connection.socket.shutdownInput();
-			connection.socket.shutdownOutput();
-			connection.socket.close();
-		} catch (IOException e) {
-			// This might be a bad choice, but let's just ignore the exception. If it won't
-			// let me close the socket there's not much I can do.
+	private static void notifyFailure(NetworkConnection connection) {
+		if (connection.binaryMessageCallback != null) {
+			connection.binaryMessageCallback.binaryConnectionUpdate(connection, false, null);
+		} else if (connection.messageCallback != null) {
+			connection.messageCallback.connectionUpdate(connection, false, null);
 		}
 	}
 
 	/**
-	 * An object that represents a connection, either to a server or to a client.
-	 * 
-	 * @author Sam Thayer
+	 * Sends the given data across the given connection with normal priority.
 	 */
-	public class NetworkConnection {
-		/**
-		 * The socket that this is a state for
-		 */
-		private AsynchronousSocketChannel socket;
-
-		/** A functor to be used whenever new data arrives */
-		private NetworkUpdateHandler messageCallback;
+	public static void send(NetworkConnection connection, String data) {
+		send(connection, data, MessagePriority.normal);
+	}
 
-		/** A functor to be used when the connection is initiated */
-		private NetworkConnectionHandler connectionCallback;
+	/**
+	 * Sends the given data across the given connection with the given priority.
+	 */
+	public static void send(NetworkConnection connection, String data, MessagePriority priority) {
+		enqueue(connection, frame(encode(data), connection, false), priority, false);
+	}
 
-		/** A queue of Strings that the user wants sent */
-		private Queue<String> messagesToSend;
+	/**
+	 * Sends the given data across the given connection as a snapshot: a message that is made obsolete by the next snapshot
+	 * sent on the same connection. If an older snapshot is still waiting to be sent when this one is queued, the older one
+	 * is dropped, so a connection never has more than one snapshot waiting no matter how far behind its peer falls.
+	 * Messages sent with send() are never dropped. Snapshots have normal priority, and stay in order relative to other
+	 * normal messages.
+	 */
+	public static void sendSnapshot(NetworkConnection connection, String data) {
+		enqueue(connection, frame(encode(data), connection, false), MessagePriority.normal, true);
+	}
 
-		/** A lock to prevent race conditions on messagesToSend */
-		private Lock sendLock;
+	/**
+	 * Sends the given data across the given connection with normal priority. The data is the bytes between the buffer's
+	 * position and limit; they are copied before this method returns, and the buffer itself is not modified. This only
+	 * works on connections from openBinaryServer() or connectToBinaryServer().
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the connection's messages are framed by a terminator
+	 */
+	public static void send(NetworkConnection connection, ByteBuffer data) {
+		send(connection, data, MessagePriority.normal);
+	}
 
-		/** Tells whether the socket is currently reading or not */
-		private boolean isReading;
+	/**
+	 * Sends the given data across the given connection with the given priority. See send(connection, ByteBuffer) for
+	 * details.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the connection's messages are framed by a terminator
+	 */
+	public static void send(NetworkConnection connection, ByteBuffer data, MessagePriority priority) {
+		enqueue(connection, frame(data, connection, true), priority, false);
+	}
 
-		/** A lock to prevent race conditions on isReading */
-		private Lock readLock;
+	/**
+	 * Sends the given data across the given connection as a snapshot. See sendSnapshot(connection, String) for what that
+	 * means, and send(connection, ByteBuffer) for details about the data.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the connection's messages are framed by a terminator
+	 */
+	public static void sendSnapshot(NetworkConnection connection, ByteBuffer data) {
+		enqueue(connection, frame(data, connection, true), MessagePriority.normal, true);
+	}
 
-		/**
-		 * The small buffer which the socket will save data to. From here, data should be promptly moved to "data," a
-		 * StringBuilder
-		 */
-		private ByteBuffer tempBuffer;
+	/**
+	 * Sends the given data across every one of the given connections with normal priority. The message is only encoded
+	 * once, no matter how many connections there are, so this should be preferred over calling send() in a loop.
+	 */
+	public static void broadcast(Iterable<NetworkConnection> connections, String data) {
+		broadcast(connections, encode(data), MessagePriority.normal, false, false);
+	}
 
-		/**
-		 * A large buffer to dump data from messageBuffer into. All incoming data will end up here before the program sees it.
-		 */
-		private StringBuilder largeBuffer;
+	/**
+	 * Sends the given data across every one of the given connections with the given priority. See broadcast(connections,
+	 * data) for why this should be preferred over calling send() in a loop.
+	 */
+	public static void broadcast(Iterable<NetworkConnection> connections, String data, MessagePriority priority) {
+		broadcast(connections, encode(data), priority, false, false);
+	}
+
+	/**
+	 * Sends the given data across every one of the given connections as a snapshot. See sendSnapshot() for what that
+	 * means, and broadcast() for why this should be preferred over calling sendSnapshot() in a loop.
+	 */
+	public static void broadcastSnapshot(Iterable<NetworkConnection> connections, String data) {
+		broadcast(connections, encode(data), MessagePriority.normal, true, false);
+	}
+
+	/**
+	 * Sends the given data across every one of the given connections with normal priority. See send(connection,
+	 * ByteBuffer) for details about the data, and broadcast(connections, String) for why this should be preferred over
+	 * calling send() in a loop.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If any of the connections' messages are framed by a terminator
+	 */
+	public static void broadcast(Iterable<NetworkConnection> connections, ByteBuffer data) {
+		broadcast(connections, data, MessagePriority.normal, false, true);
+	}
+
+	/**
+	 * Sends the given data across every one of the given connections with the given priority. See
+	 * broadcast(connections, ByteBuffer) for details.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If any of the connections' messages are framed by a terminator
+	 */
+	public static void broadcast(Iterable<NetworkConnection> connections, ByteBuffer data, MessagePriority priority) {
+		broadcast(connections, data, priority, false, true);
+	}
+
+	/**
+	 * Sends the given data across every one of the given connections as a snapshot. See sendSnapshot(connection, String)
+	 * for what that means, and broadcast(connections, ByteBuffer) for details.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If any of the connections' messages are framed by a terminator
+	 */
+	public static void broadcastSnapshot(Iterable<NetworkConnection> connections, ByteBuffer data) {
+		broadcast(connections, data, MessagePriority.normal, true, true);
+	}
+
+	/**
+	 * Returns the number of messages that have been sent on the given connection but haven't completely made it to the
+	 * socket yet. A connection whose count stays high has a peer that isn't keeping up.
+	 */
+	public static int getQueueDepth(NetworkConnection connection) {
+		// This is only a rough count, since other threads may be sending while it's worked out. Every snapshot marker in the
+		// queue has been counted as a message, but at most the one pending snapshot will actually be sent.
+		int depth = connection.queuedMessages.get() - connection.queuedSnapshots.get() + connection.unsentMessages;
+		if (connection.pendingSnapshot.get() != null) {
+			depth++;
+		}
+		return Math.max(depth, 0);
+	}
+
+	/**
+	 * Returns a snapshot of the given connection's traffic so far. The connection keeps these numbers up to date whether
+	 * or not anybody asks for them, and doing so doesn't slow it down; only taking a snapshot costs anything.
+	 */
+	public static ConnectionStatistics getStatistics(NetworkConnection connection) {
+		return new ConnectionStatistics(connection.bytesSent, connection.messagesSent, connection.bytesReceived, connection.messagesReceived,
+				getQueueDepth(connection), connection.peakQueueDepth, connection.writesCompleted, connection.totalWriteTime,
+				connection.longestWriteTime, connection.totalDispatchDelay, connection.longestDispatchDelay, connection.framingBufferSize,
+				connection.framingBufferedBytes);
+	}
+
+	/**
+	 * A helper method for the broadcast methods. data is not modified, and isBinary is false if data is an encoded String.
+	 */
+	private static void broadcast(Iterable<NetworkConnection> connections, ByteBuffer data, MessagePriority priority, boolean isSnapshot,
+			boolean isBinary) {
+		ByteBuffer message = null;
+		NetworkConnection framedFor = null;
+
+		for (NetworkConnection c : connections) {
+			// Every connection gets its own view of the same bytes. Connections normally all frame messages the same way,
+			// but if one doesn't, it needs a differently framed copy
+			if (framedFor == null || !sameFraming(c, framedFor)) {
+				message = frame(data, c, isBinary).asReadOnlyBuffer();
+				framedFor = c;
+			}
+			enqueue(c, message.duplicate(), priority, isSnapshot);
+		}
+	}
+
+	/**
+	 * A helper method that returns true if messages sent on the two given connections are framed identically
+	 */
+	private static boolean sameFraming(NetworkConnection a, NetworkConnection b) {
+		if (a.lengthPrefixed || b.lengthPrefixed) {
+			return a.lengthPrefixed == b.lengthPrefixed;
+		}
+		return a.messageTerminator == b.messageTerminator;
+	}
+
+	/**
+	 * A helper method that encodes the given String into a buffer of UTF-8 bytes
+	 */
+	private static ByteBuffer encode(String data) {
+		return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * A helper method that copies data into a new buffer, framed the way the given connection expects, that is ready to be
+	 * written. data is not modified, and isBinary is false if data is an encoded String.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If data is binary, and the connection's messages are framed by a terminator
+	 */
+	private static ByteBuffer frame(ByteBuffer data, NetworkConnection connection, boolean isBinary) {
+		ByteBuffer message;
+		if (connection.lengthPrefixed) {
+			message = ByteBuffer.allocate(MessageFramer.LENGTH_PREFIX_SIZE + data.remaining());
+			message.putInt(data.remaining());
+			message.put(data.duplicate());
+		} else {
+			if (isBinary) {
+				throw new IllegalArgumentException("Binary messages can only be sent on connections that frame messages by length.");
+			}
+			message = ByteBuffer.allocate(data.remaining() + connection.encodedTerminator.length);
+			message.put(data.duplicate());
+			message.put(connection.encodedTerminator);
+		}
+		message.flip();
+		return message;
+	}
+
+	/**
+	 * A helper method that adds an encoded message to the given connection's send queue for its priority, and makes sure
+	 * the queues are being written. Snapshots must have normal priority. This never blocks, no matter how many threads are
+	 * sending at once.
+	 */
+	private static void enqueue(NetworkConnection connection, ByteBuffer message, MessagePriority priority, boolean isSnapshot) {
+		// This method doesn't actually send messages, it only adds them to a queue
+		// and starts up writeQueuedMessages() if nobody else is running it
+		if (priority == MessagePriority.urgent) {
+			connection.urgentMessagesToSend.offer(message);
+		} else if (isSnapshot) {
+			// A snapshot can only be sent in its own marker's place, so it can never get ahead of the messages queued before
+			// it. Replacing the pending snapshot means that any older marker still in the queue is skipped.
+			ByteBuffer marker = SNAPSHOT_MARKER.duplicate();
+			connection.pendingSnapshot.set(new pendingSnapshot(marker, message));
+			connection.queuedSnapshots.incrementAndGet();
+			connection.messagesToSend.offer(marker);
+		} else {
+			connection.messagesToSend.offer(message);
+		}
+		connection.queuedMessages.incrementAndGet();
+
+		// Several threads may race here, but a peak that's off by one now and then isn't worth a compare-and-set loop
+		int depth = getQueueDepth(connection);
+		if (depth > connection.peakQueueDepth) {
+			connection.peakQueueDepth = depth;
+		}
+
+		if (connection.isWriting.compareAndSet(false, true)) {
+			writeQueuedMessages(connection);
+		}
+	}
+
+	/**
+	 * A Helper method that sends everything that is waiting to be sent in a single write. Whatever a previous write didn't
+	 * finish goes first, followed by every urgent message and then every normal message that has been queued since then.
+	 * Once there is nothing left to send, the connection stops writing until send() is called again. Only the thread that
+	 * set the connection's isWriting flag may call this.
+	 */
+	private static void writeQueuedMessages(NetworkConnection connection) {
+		while (true) {
+			int batchSize = fillWriteBatch(connection);
+			if (batchSize > 0) {
+				connection.writeStartTime = System.nanoTime();
+				connection.transport.write(connection.writeBatch, batchSize, connection);
+				return;
+			}
+
+			// Nothing is left, so stop writing. Somebody may have queued a message right before this, though, and given up
+			// on writing it themselves because this thread was still going, so check once more before leaving.
+			connection.isWriting.set(false);
+			if (connection.queuedMessages.get() <= 0 || !connection.isWriting.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A helper method that refills the given connection's writeBatch and returns the number of messages in it. Only the
+	 * thread that set the connection's isWriting flag may call this.
+	 */
+	private static int fillWriteBatch(NetworkConnection connection) {
+		// Keep the unfinished part of the last batch, in order
+		int batchSize = 0;
+		long unsentBytes = 0;
+		for (int i = 0; i < connection.writeBatchSize; i++) {
+			if (connection.writeBatch[i].hasRemaining()) {
+				unsentBytes += connection.writeBatch[i].remaining();
+				connection.writeBatch[batchSize++] = connection.writeBatch[i];
+			}
+		}
+
+		// Whatever is no longer in the batch has been sent
+		if (connection.writeBatchSize > 0) {
+			connection.messagesSent += connection.writeBatchSize - batchSize;
+			connection.bytesSent += connection.writeBatchBytes - unsentBytes;
+		}
+		connection.writeBatchBytes = unsentBytes;
+
+		// Then add on everything that's been queued since the last write started, most urgent first
+		batchSize = drainQueue(connection, connection.urgentMessagesToSend, batchSize);
+		batchSize = drainQueue(connection, connection.messagesToSend, batchSize);
+
+		// Don't hold on to buffers that have already been sent
+		Arrays.fill(connection.writeBatch, batchSize, Math.max(batchSize, connection.writeBatchSize), null);
+		connection.writeBatchSize = batchSize;
+		connection.unsentMessages = batchSize;
+		return batchSize;
+	}
+
+	/**
+	 * A helper method that moves messages from the given send queue onto the end of the given connection's writeBatch,
+	 * which already has batchSize messages in it, and returns the new number of messages in it
+	 */
+	private static int drainQueue(NetworkConnection connection, MpscQueue<ByteBuffer> queue, int batchSize) {
+		while (batchSize < MAX_WRITE_BATCH_SIZE) {
+			ByteBuffer message = queue.poll();
+			if (message == null) {
+				break;
+			}
+			connection.queuedMessages.decrementAndGet();
+
+			if (message.capacity() == 0) {
+				// This marker's snapshot is only sent if it's still the newest. Otherwise it was replaced, and the newer one
+				// goes in its own marker's place to stay in order with the messages in between.
+				connection.queuedSnapshots.decrementAndGet();
+				pendingSnapshot snapshot = connection.pendingSnapshot.get();
+				if (snapshot == null || snapshot.marker != message || !connection.pendingSnapshot.compareAndSet(snapshot, null)) {
+					continue;
+				}
+				message = snapshot.message;
+			}
+
+			if (batchSize == connection.writeBatch.length) {
+				connection.writeBatch = Arrays.copyOf(connection.writeBatch, batchSize * 2);
+			}
+			connection.writeBatch[batchSize++] = message;
+			connection.writeBatchBytes += message.remaining();
+		}
+		return batchSize;
+	}
+
+	/**
+	 * Called by a {@link Transport} when a write has finished
+	 */
+	static void writeCompleted(NetworkConnection connectionState) {
+		long writeTime = System.nanoTime() - connectionState.writeStartTime;
+		connectionState.writesCompleted++;
+		connectionState.totalWriteTime += writeTime;
+		if (writeTime > connectionState.longestWriteTime) {
+			connectionState.longestWriteTime = writeTime;
+		}
+
+		// The write may not have sent everything, but writeQueuedMessages will pick up where it left off, as well as
+		// sending anything that was queued in the meantime. This thread still holds the isWriting flag from whoever
+		// started the write.
+		writeQueuedMessages(connectionState);
+	}
+
+	/**
+	 * Called by a {@link Transport} when a write has failed
+	 */
+	static void writeFailed(NetworkConnection connectionState) {
+		// Normally the user doesn't care about confirmation that messages sent, but if
+		// one failed they should know
+		if (connectionState.isValid) {
+			notifyFailure(connectionState);
+		}
+	}
+
+	/**
+	 * Closes a {@link NetworkConnection}. After calling this method, the given {@link NetworkConnection} should be
+	 * considered useless.
+	 */
+	public static void closeConnection(NetworkConnection connection) {
+		connection.readLock.lock();
+		connection.isValid = false;
+		// If a read is in progress, its buffer has to wait until the read finishes to go back to the pool
+		if (!connection.isReading) {
+			connection.framer.release();
+		}
+		connection.readLock.unlock();
+
+		connection.transport.close();
+	}
+
+	/**
+	 * Returns the address of the other end of the given connection, or null if it can't be determined.
+	 */
+	public static InetSocketAddress getRemoteAddress(NetworkConnection connection) {
+		try {
+			return connection.transport.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens an endpoint for sending and receiving datagrams on every address this machine has, unless there is an IO
+	 * problem in which case it returns null. Every datagram that arrives is passed to the given handler, from a thread
+	 * that every endpoint shares. <br>
+	 * Whenever the program is finished using the endpoint, it should call closeDatagramEndpoint with it.
+	 * 
+	 * @param handler
+	 *            A functor to notify when a datagram arrives
+	 * @param port
+	 *            The port to receive datagrams on, or 0 to use any free port (see getDatagramPort())
+	 */
+	public static NetworkDatagramEndpoint openDatagramEndpoint(NetworkDatagramHandler handler, int port) {
+		return openDatagramEndpoint(handler, port, new NetworkConfiguration());
+	}
+
+	/**
+	 * Opens an endpoint for sending and receiving datagrams, just like openDatagramEndpoint(handler, port), except that it
+	 * only listens on the address that the given configuration says servers should listen on. The configuration's port
+	 * is for connections, so it isn't used.
+	 */
+	public static NetworkDatagramEndpoint openDatagramEndpoint(NetworkDatagramHandler handler, int port, NetworkConfiguration configuration) {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.bind(configuration.getBindAddress(port));
+			channel.configureBlocking(false);
+			NetworkDatagramEndpoint endpoint = instance.new NetworkDatagramEndpoint(channel, handler);
+			datagramReceiver().add(endpoint);
+			return endpoint;
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// It was never usable anyway
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A helper method that lets the receiving thread know an endpoint was closed. The channel's socket isn't really let
+	 * go of until the selector it's registered with wakes up.
+	 */
+	private static synchronized void closedDatagramEndpoint() {
+		if (datagramReceiver != null) {
+			datagramReceiver.selector.wakeup();
+		}
+	}
+
+	/**
+	 * A helper method that returns the thread that receives every endpoint's datagrams, starting it the first time it's
+	 * needed
+	 */
+	private static synchronized datagramReceiver datagramReceiver() throws IOException {
+		if (datagramReceiver == null) {
+			datagramReceiver receiver = instance.new datagramReceiver();
+			Thread thread = new Thread(receiver, "Petroglyph datagram receiver");
+			thread.setDaemon(true);
+			thread.start();
+			datagramReceiver = receiver;
+		}
+		return datagramReceiver;
+	}
+
+	/**
+	 * Starts dropping any datagram from the given address that arrives after a newer one from it. Only peers are tracked,
+	 * so that the endpoint doesn't have to remember every address that ever sends it something. A peer is forgotten
+	 * when removeDatagramPeer() is called with it, or when the endpoint is closed.
+	 */
+	public static void addDatagramPeer(NetworkDatagramEndpoint endpoint, InetSocketAddress peer) {
+		endpoint.peers.putIfAbsent(peer, instance.new peerSequence());
+	}
+
+	/**
+	 * Stops tracking the given address's datagrams, so that they are passed on as they come, like anyone else's
+	 */
+	public static void removeDatagramPeer(NetworkDatagramEndpoint endpoint, InetSocketAddress peer) {
+		endpoint.peers.remove(peer);
+	}
+
+	/**
+	 * Returns the port that the given endpoint receives datagrams on, or -1 if it can't be determined.
+	 */
+	public static int getDatagramPort(NetworkDatagramEndpoint endpoint) {
+		try {
+			return ((InetSocketAddress) endpoint.channel.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends the given data from the given endpoint to the given address in a single datagram. The data is the bytes
+	 * between the buffer's position and limit; the buffer itself is not modified. The datagram may be lost, and nobody is
+	 * told if it is.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the data is larger than MAX_DATAGRAM_SIZE
+	 */
+	public static void sendDatagram(NetworkDatagramEndpoint endpoint, InetSocketAddress target, ByteBuffer data) {
+		transmitDatagram(endpoint, target, sequenceDatagram(endpoint, data));
+	}
+
+	/**
+	 * Sends the given data from the given endpoint to every one of the given addresses, just like sendDatagram(). The
+	 * datagram is only built once, no matter how many addresses there are.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the data is larger than MAX_DATAGRAM_SIZE
+	 */
+	public static void broadcastDatagram(NetworkDatagramEndpoint endpoint, Iterable<InetSocketAddress> targets, ByteBuffer data) {
+		ByteBuffer datagram = sequenceDatagram(endpoint, data);
+		for (InetSocketAddress target : targets) {
+			transmitDatagram(endpoint, target, datagram.duplicate());
+		}
+	}
+
+	/**
+	 * Closes the given datagram endpoint. After calling this, you should consider the given endpoint to be useless.
+	 */
+	public static void closeDatagramEndpoint(NetworkDatagramEndpoint endpoint) {
+		endpoint.isValid = false;
+		endpoint.peers.clear();
+		try {
+			endpoint.channel.close();
+		} catch (IOException e) {
+			// Just like with sockets, if it won't close there's not much I can do
+		}
+		closedDatagramEndpoint();
+	}
+
+	/**
+	 * A helper method that copies data into a new buffer behind the endpoint's next sequence number, ready to be sent
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the data is larger than MAX_DATAGRAM_SIZE
+	 */
+	private static ByteBuffer sequenceDatagram(NetworkDatagramEndpoint endpoint, ByteBuffer data) {
+		if (data.remaining() > MAX_DATAGRAM_SIZE) {
+			throw new IllegalArgumentException("Datagrams can't be larger than " + MAX_DATAGRAM_SIZE + " bytes.");
+		}
+
+		ByteBuffer datagram = ByteBuffer.allocate(SEQUENCE_NUMBER_SIZE + data.remaining());
+		datagram.putInt(endpoint.nextSequenceNumber.getAndIncrement());
+		datagram.put(data.duplicate());
+		datagram.flip();
+		return datagram;
+	}
+
+	/**
+	 * A helper method that sends a datagram that already has its sequence number, dropping or delaying it first if the
+	 * test properties say to
+	 */
+	private static void transmitDatagram(final NetworkDatagramEndpoint endpoint, final InetSocketAddress target, final ByteBuffer datagram) {
+		if (DATAGRAM_LOSS > 0 && datagramShimRandom.nextDouble() < DATAGRAM_LOSS) {
+			return;
+		}
+
+		long delay = DATAGRAM_LATENCY;
+		if (DATAGRAM_JITTER > 0) {
+			delay += (long) (datagramShimRandom.nextDouble() * DATAGRAM_JITTER);
+		}
+		if (delay <= 0) {
+			sendDatagramNow(endpoint, target, datagram);
+			return;
+		}
+
+		datagramDelayer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendDatagramNow(endpoint, target, datagram);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A helper method that hands a datagram to the endpoint's channel
+	 */
+	private static void sendDatagramNow(NetworkDatagramEndpoint endpoint, InetSocketAddress target, ByteBuffer datagram) {
+		if (!endpoint.isValid) {
+			return;
+		}
+
+		try {
+			// The channel doesn't block, so if the system has no room for this, it isn't sent
+			endpoint.channel.send(datagram, target);
+		} catch (IOException e) {
+			// Datagrams are allowed to get lost, so this one just did
+		}
+	}
+
+	/**
+	 * A helper method that returns the executor used to delay datagrams, creating it the first time it's needed
+	 */
+	private static synchronized ScheduledExecutorService datagramDelayer() {
+		if (datagramDelayer == null) {
+			datagramDelayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Petroglyph datagram delayer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return datagramDelayer;
+	}
+
+	/**
+	 * A helper class that receives datagrams for every endpoint on one thread, so that hosting lots of games doesn't mean
+	 * a thread for every one of them. Endpoints' channels are non-blocking and registered with one selector.
+	 */
+	private class datagramReceiver implements Runnable {
+		/** Tells which endpoints have datagrams waiting */
+		private final Selector selector;
+
+		/** Endpoints that have been opened, but that the thread hasn't registered with the selector yet */
+		private final MpscQueue<NetworkDatagramEndpoint> newEndpoints;
+
+		private datagramReceiver() throws IOException {
+			this.selector = Selector.open();
+			this.newEndpoints = new MpscQueue<NetworkDatagramEndpoint>();
+		}
+
+		/**
+		 * Starts receiving datagrams for the given endpoint
+		 */
+		private void add(NetworkDatagramEndpoint endpoint) {
+			// Registering from another thread would block until the selector wakes up, so the thread does it itself
+			newEndpoints.offer(endpoint);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(SEQUENCE_NUMBER_SIZE + MAX_DATAGRAM_SIZE);
+			ByteBuffer message = buffer.asReadOnlyBuffer();
+
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					// Nothing can be received without the selector, but there's no harm in trying again
+					continue;
+				}
+
+				NetworkDatagramEndpoint endpoint;
+				while ((endpoint = newEndpoints.poll()) != null) {
+					try {
+						endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+					} catch (IOException e) {
+						// It was closed before it could be registered
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					receive((NetworkDatagramEndpoint) key.attachment(), buffer, message);
+				}
+			}
+		}
+
+		/**
+		 * A helper method that hands out the datagrams waiting on the given endpoint. Only a few are taken at a time, so
+		 * that a flood on one endpoint can't keep the others waiting; the selector comes back for the rest.
+		 */
+		private void receive(NetworkDatagramEndpoint endpoint, ByteBuffer buffer, ByteBuffer message) {
+			for (int i = 0; i < MAX_DATAGRAMS_PER_RECEIVE && endpoint.isValid; i++) {
+				SocketAddress source;
+				buffer.clear();
+				try {
+					source = endpoint.channel.receive(buffer);
+				} catch (IOException e) {
+					// Either the endpoint was closed, which unregisters it, or it was just one bad datagram
+					return;
+				}
+
+				if (source == null) {
+					// There's nothing left
+					return;
+				}
+				if (buffer.position() < SEQUENCE_NUMBER_SIZE) {
+					continue;
+				}
+
+				// Compare by difference, so the numbers can wrap around
+				int sequenceNumber = buffer.getInt(0);
+				peerSequence peer = endpoint.peers.get(source);
+				if (peer != null) {
+					if (peer.heardFrom && sequenceNumber - peer.newest <= 0) {
+						// Something newer already arrived, so this one is stale
+						continue;
+					}
+					peer.newest = sequenceNumber;
+					peer.heardFrom = true;
+				}
+
+				message.limit(buffer.position());
+				message.position(SEQUENCE_NUMBER_SIZE);
+				try {
+					endpoint.callMe.datagramUpdate(endpoint, (InetSocketAddress) source, message);
+				} catch (RuntimeException e) {
+					// Every endpoint shares this thread, so one broken handler mustn't stop the rest
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * An object that represents a connection, either to a server or to a client.
+	 * 
+	 * @author Sam Thayer
+	 */
+	public class NetworkConnection {
+		/**
+		 * The transport that this is a state for
+		 */
+		private Transport transport;
+
+		/** A functor to be used whenever new data arrives, if the user wants it as Strings */
+		private NetworkUpdateHandler messageCallback;
+
+		/** A functor to be used whenever new data arrives, if the user wants it as bytes */
+		private NetworkBinaryUpdateHandler binaryMessageCallback;
+
+		/** A functor to be used when the connection is initiated */
+		private NetworkConnectionHandler connectionCallback;
+
+		/**
+		 * A queue of encoded messages with normal priority that the user wants sent, but that haven't been given to the
+		 * socket yet
+		 */
+		private MpscQueue<ByteBuffer> messagesToSend;
+
+		/**
+		 * A queue of encoded urgent messages that the user wants sent, but that haven't been given to the socket yet. These
+		 * go ahead of everything in messagesToSend.
+		 */
+		private MpscQueue<ByteBuffer> urgentMessagesToSend;
+
+		/** The newest snapshot that hasn't been given to the socket yet, or null if there isn't one */
+		private AtomicReference<pendingSnapshot> pendingSnapshot;
+
+		/** The number of snapshot markers in messagesToSend */
+		private AtomicInteger queuedSnapshots;
+
+		/** The number of entries in both send queues, including snapshot markers */
+		private AtomicInteger queuedMessages;
+
+		/**
+		 * The messages that the socket is currently writing. Only the first writeBatchSize entries are meaningful, and some of
+		 * those may have already been completely sent.
+		 */
+		private ByteBuffer[] writeBatch;
+
+		/** The number of meaningful entries in writeBatch */
+		private int writeBatchSize;
+
+		/** The number of messages in writeBatch when it was last filled. Only used to count how much is still waiting. */
+		private volatile int unsentMessages;
+
+		/**
+		 * Tells whether some thread is currently writing or not. Whoever sets this is the only one allowed to take messages
+		 * out of the send queues or touch writeBatch, until it is cleared again.
+		 */
+		private AtomicBoolean isWriting;
+
+		/** The number of bytes left to send in writeBatch when it was last filled */
+		private long writeBatchBytes;
+
+		/** The time, from System.nanoTime(), when the current write was started */
+		private long writeStartTime;
+
+		/*
+		 * The rest of these are only for getStatistics(). Apart from peakQueueDepth, each one is only changed by whichever
+		 * thread is writing, or whichever thread is reading, so they never need a lock. They're volatile so that other
+		 * threads can read them.
+		 */
+		/** The number of bytes that the socket has sent */
+		private volatile long bytesSent;
+
+		/** The number of messages that the socket has completely sent */
+		private volatile long messagesSent;
+
+		/** The number of bytes that the socket has received */
+		private volatile long bytesReceived;
+
+		/** The number of messages that have been handed to the user */
+		private volatile long messagesReceived;
+
+		/** The highest that getQueueDepth() has been right after a message was queued */
+		private volatile int peakQueueDepth;
+
+		/** The number of writes that have finished */
+		private volatile long writesCompleted;
+
+		/** The total time, in nanoseconds, that finished writes took */
+		private volatile long totalWriteTime;
+
+		/** The longest time, in nanoseconds, that a write took */
+		private volatile long longestWriteTime;
+
+		/** The total time, in nanoseconds, between reads finishing and their messages being handed to the user */
+		private volatile long totalDispatchDelay;
+
+		/** The longest time, in nanoseconds, between a read finishing and one of its messages being handed to the user */
+		private volatile long longestDispatchDelay;
+
+		/** The size of the framer's buffer after the last read */
+		private volatile int framingBufferSize;
+
+		/** The number of bytes in the framer's buffer that weren't part of a message after the last read */
+		private volatile int framingBufferedBytes;
+
+		/** Tells whether the socket is currently reading, or handing out the messages from its last read */
+		private boolean isReading;
+
+		/** Tells whether the user has asked for more data since the last message was handed to them */
+		private boolean readRequested;
+
+		/** A lock to prevent race conditions on isReading */
+		private Lock readLock;
+
+		/**
+		 * The buffer which the socket saves data to, and which splits that data into messages. All incoming data will end up
+		 * here before the program sees it.
+		 */
+		private MessageFramer framer;
 
 		/**
 		 * True unless the user has asked to close this connection, meaning any future messages should be ignored.
@@ -414,22 +1506,42 @@ public class NetworkingLibrary {
 		private boolean isValid;
 
 		/**
-		 * A character used to denote the end of messages
+		 * A character used to denote the end of messages. Meaningless if lengthPrefixed is true.
 		 */
 		private char messageTerminator;
 
+		/** The UTF-8 encoding of messageTerminator */
+		private byte[] encodedTerminator;
+
+		/** True if messages on this connection are framed by their length rather than by messageTerminator */
+		private boolean lengthPrefixed;
+
 		/**
 		 * Makes a NetworkConnection for the given socket
 		 */
-		private NetworkConnection(AsynchronousSocketChannel socket, char messageTerminator) {
-			this.socket = socket;
-			this.tempBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			this.largeBuffer = new StringBuilder();
+		private NetworkConnection(Transport transport, char messageTerminator, boolean lengthPrefixed) {
+			this.transport = transport;
+			if (lengthPrefixed) {
+				this.framer = new MessageFramer(readBufferPool, BUFFER_SIZE);
+			} else {
+				this.framer = new MessageFramer(readBufferPool, BUFFER_SIZE, messageTerminator);
+			}
+			this.lengthPrefixed = lengthPrefixed;
 			this.isValid = true;
 			this.messageTerminator = messageTerminator;
-			this.messagesToSend = new LinkedList<String>();
-			this.sendLock = new ReentrantLock();
+			this.encodedTerminator = Character.toString(messageTerminator).getBytes(StandardCharsets.UTF_8);
+			this.messagesToSend = new MpscQueue<ByteBuffer>();
+			this.urgentMessagesToSend = new MpscQueue<ByteBuffer>();
+			this.pendingSnapshot = new AtomicReference<pendingSnapshot>();
+			this.queuedSnapshots = new AtomicInteger(0);
+			this.queuedMessages = new AtomicInteger(0);
+			this.writeBatch = new ByteBuffer[INITIAL_WRITE_BATCH_SIZE];
+			this.writeBatchSize = 0;
+			this.unsentMessages = 0;
+			this.isWriting = new AtomicBoolean(false);
+			this.framingBufferSize = framer.capacity();
 			this.isReading = false;
+			this.readRequested = false;
 			this.readLock = new ReentrantLock();
 		}
 	}
@@ -440,8 +1552,8 @@ public class NetworkingLibrary {
 	 * @author Sam Thayer
 	 */
 	public class NetworkListener {
-		/** The server socket that this is a state for */
-		private AsynchronousServerSocketChannel listener;
+		/** The transport that this is a state for */
+		private ListenerTransport listener;
 
 		/**
 		 * The object to be notified whenever a client attempts connecting to the TCPListener
@@ -454,19 +1566,82 @@ public class NetworkingLibrary {
 		private boolean isValid;
 
 		/**
-		 * A character used to denote the end of messages
+		 * A character used to denote the end of messages. Meaningless if lengthPrefixed is true.
 		 */
 		private char messageTerminator;
 
+		/** True if messages on this listener's connections are framed by their length rather than by messageTerminator */
+		private boolean lengthPrefixed;
+
 		/**
 		 * Creates a state that contains information relevant to a TCPListener
 		 */
-		private NetworkListener(AsynchronousServerSocketChannel listener, NetworkConnectionHandler callback, char messageTerminator) {
+		private NetworkListener(ListenerTransport listener, NetworkConnectionHandler callback, char messageTerminator,
+				boolean lengthPrefixed) {
 			this.listener = listener;
 			this.callMe = callback;
 			this.isValid = true;
 			this.messageTerminator = messageTerminator;
+			this.lengthPrefixed = lengthPrefixed;
 		}
 
 	}
+
+	/**
+	 * An object that represents an endpoint for sending and receiving datagrams.
+	 * 
+	 * @author Sam Thayer
+	 */
+	public class NetworkDatagramEndpoint {
+		/** The channel that this is a state for */
+		private DatagramChannel channel;
+
+		/** The object to be notified whenever a datagram arrives */
+		private NetworkDatagramHandler callMe;
+
+		/** The sequence number to give the next datagram sent from this endpoint */
+		private AtomicInteger nextSequenceNumber;
+
+		/** The peers whose stale datagrams are dropped, and how far along each one is */
+		private ConcurrentHashMap<SocketAddress, peerSequence> peers;
+
+		/**
+		 * True unless the user has asked to close this endpoint, meaning any future datagrams should be ignored.
+		 */
+		private volatile boolean isValid;
+
+		/**
+		 * Creates a state for the given channel
+		 */
+		private NetworkDatagramEndpoint(DatagramChannel channel, NetworkDatagramHandler callback) {
+			this.channel = channel;
+			this.callMe = callback;
+			this.nextSequenceNumber = new AtomicInteger(0);
+			this.peers = new ConcurrentHashMap<SocketAddress, peerSequence>();
+			this.isValid = true;
+		}
+	}
+
+	/** A helper class that ties a snapshot waiting to be sent to the marker that holds its place in the queue */
+	private static class pendingSnapshot {
+		/** The marker in the queue that this snapshot may be sent in place of */
+		private final ByteBuffer marker;
+
+		/** The snapshot itself */
+		private final ByteBuffer message;
+
+		private pendingSnapshot(ByteBuffer marker, ByteBuffer message) {
+			this.marker = marker;
+			this.message = message;
+		}
+	}
+
+	/** A helper class that remembers the newest datagram from a peer. Only the endpoint's receiving thread touches it. */
+	private class peerSequence {
+		/** The newest sequence number that has been received, if heardFrom is true */
+		private int newest;
+
+		/** False until the first datagram arrives */
+		private boolean heardFrom;
+	}
 }
@@ -0,0 +1,124 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import controller.NetworkingLibrary.NetworkListener;
+
+/**
+ * A {@link ListenerTransport} built on a non-blocking {@link ServerSocketChannel} that belongs to a
+ * {@link SelectorLoop}. Its clients use {@link SelectorTransport}s, which are spread across all the loops.
+ *
+ * @author Sam Thayer
+ */
+class SelectorListenerTransport implements ListenerTransport, SelectorLoop.Handler {
+	/** The server socket that this is a transport for */
+	private final ServerSocketChannel listener;
+
+	/** The loop that accepts this transport's clients */
+	private final SelectorLoop loop;
+
+	/** The channel's registration with the loop */
+	private SelectionKey key;
+
+	/** The listener that is waiting for a client, or null if there isn't one */
+	private NetworkListener accepting;
+
+	/** The settings for the listener and its clients */
+	private final NetworkConfiguration configuration;
+
+	/**
+	 * Makes a transport that listens where the given configuration says
+	 */
+	SelectorListenerTransport(NetworkConfiguration configuration) throws IOException {
+		this.listener = ServerSocketChannel.open();
+		this.loop = SelectorLoop.next();
+		this.configuration = configuration;
+		configuration.configureListener(listener);
+		listener.bind(configuration.getBindAddress());
+		listener.configureBlocking(false);
+
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = loop.register(listener, SelectorListenerTransport.this);
+				} catch (IOException e) {
+					// The listener was closed before it could be registered, so there's nothing to do
+				}
+			}
+		});
+	}
+
+	@Override
+	public void accept(final NetworkListener listenerState) {
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				accepting = listenerState;
+				if (key != null && key.isValid()) {
+					key.interestOps(SelectionKey.OP_ACCEPT);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.close();
+				} catch (IOException e) {
+					// This might be a bad choice, but let's just ignore the exception. If it won't
+					// let me close the listener there's not much I can do.
+				}
+			}
+		});
+	}
+
+	@Override
+	public void ready(SelectionKey key) {
+		NetworkListener listenerState = accepting;
+		SelectorTransport client;
+		SocketChannel channel = null;
+		try {
+			channel = listener.accept();
+			if (channel == null) {
+				// Somebody gave up before we got to them, so keep waiting
+				return;
+			}
+			configuration.configureConnection(channel);
+			client = new SelectorTransport(channel, SelectorLoop.next());
+		} catch (IOException e) {
+			closeQuietly(channel);
+			accepting = null;
+			key.interestOps(0);
+			NetworkingLibrary.acceptFailed(listenerState);
+			return;
+		}
+
+		// Just like with the other backend, only one client is accepted until the user asks for another
+		accepting = null;
+		key.interestOps(0);
+		NetworkingLibrary.acceptCompleted(listenerState, client);
+	}
+
+	/**
+	 * A helper method that closes a client that couldn't be set up, if there is one
+	 */
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// This might be a bad choice, but let's just ignore the exception. If it won't
+			// let me close the socket there's not much I can do.
+		}
+	}
+}
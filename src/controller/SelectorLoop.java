@@ -0,0 +1,164 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread that runs a {@link Selector}, and does all the IO for every channel registered with it. There is one loop
+ * per processor, and each connection stays on the same loop for its whole life, so everything that happens to a
+ * connection happens on one thread. <br>
+ * Channels may only be touched from their loop's thread. Anything that needs to happen from another thread is handed
+ * to the loop with execute().
+ *
+ * @author Sam Thayer
+ */
+class SelectorLoop implements Runnable {
+	/**
+	 * Something that is registered with a loop, and wants to know when its channel is ready
+	 *
+	 * @author Sam Thayer
+	 */
+	interface Handler {
+		/**
+		 * Called on the loop's thread whenever the given key has some of its interest ops ready
+		 */
+		void ready(SelectionKey key);
+	}
+
+	/** Every loop, created the first time one is needed */
+	private static SelectorLoop[] loops;
+
+	/** The number of loops that have been handed out, used to spread channels evenly across them */
+	private static final AtomicInteger loopsHandedOut = new AtomicInteger(0);
+
+	/** The selector that this loop runs */
+	private final Selector selector;
+
+	/** Tasks that other threads have asked this loop to run */
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	/** The thread that runs this loop */
+	private final Thread thread;
+
+	/**
+	 * Makes a loop and starts its thread
+	 */
+	private SelectorLoop(int number) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.thread = new Thread(this, "Petroglyph selector loop " + number);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the loop that the next channel should use. Channels are spread across the loops in turn.
+	 *
+	 * @throws IOException
+	 *             If the loops haven't been made yet, and can't be
+	 */
+	static SelectorLoop next() throws IOException {
+		SelectorLoop[] all = loops();
+		return all[(loopsHandedOut.getAndIncrement() & Integer.MAX_VALUE) % all.length];
+	}
+
+	/**
+	 * A helper method that returns every loop, making them the first time it's called
+	 */
+	private static synchronized SelectorLoop[] loops() throws IOException {
+		if (loops == null) {
+			SelectorLoop[] created = new SelectorLoop[Runtime.getRuntime().availableProcessors()];
+			for (int i = 0; i < created.length; i++) {
+				created[i] = new SelectorLoop(i);
+			}
+			loops = created;
+		}
+		return loops;
+	}
+
+	/**
+	 * Returns true if this is being called from this loop's thread
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Has this loop run the given task on its thread, after any tasks that were already waiting. If this is called from
+	 * the loop's thread, the task still waits its turn instead of running right away.
+	 */
+	void execute(Runnable task) {
+		tasks.offer(task);
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs the given task on this loop's thread: right away if that's where this is being called from, or later
+	 * otherwise.
+	 */
+	void runInLoop(Runnable task) {
+		if (inLoop()) {
+			task.run();
+		} else {
+			execute(task);
+		}
+	}
+
+	/**
+	 * Registers the given channel with this loop, with no interest ops. This must be called from the loop's thread.
+	 */
+	SelectionKey register(SelectableChannel channel, Handler handler) throws IOException {
+		return channel.register(selector, 0, handler);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				// Don't wait for IO if there's already something to do
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+			} catch (IOException e) {
+				// There's nothing sensible to do except try again
+				continue;
+			}
+
+			Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+			while (selected.hasNext()) {
+				SelectionKey key = selected.next();
+				selected.remove();
+				if (key.isValid()) {
+					try {
+						((Handler) key.attachment()).ready(key);
+					} catch (RuntimeException e) {
+						// A broken callback shouldn't take every other connection on this loop down with it
+						e.printStackTrace();
+					}
+				}
+			}
+
+			// Only run the tasks that were waiting when we started, so a task that queues another can't starve the IO
+			for (int waiting = tasks.size(); waiting > 0; waiting--) {
+				Runnable task = tasks.poll();
+				if (task == null) {
+					break;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
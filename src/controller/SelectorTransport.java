@@ -0,0 +1,270 @@
+package controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import controller.NetworkingLibrary.NetworkConnection;
+
+/**
+ * A {@link Transport} built on a non-blocking {@link SocketChannel} that belongs to a {@link SelectorLoop}. All of its IO
+ * happens on the loop's thread, and so do all of its completions. Operations started from the loop's thread begin right
+ * away; operations started anywhere else are handed over to the loop.
+ *
+ * @author Sam Thayer
+ */
+class SelectorTransport implements Transport, SelectorLoop.Handler {
+	/** The socket that this is a transport for */
+	private final SocketChannel channel;
+
+	/** The loop that does this transport's IO */
+	private final SelectorLoop loop;
+
+	/** The channel's registration with the loop */
+	private SelectionKey key;
+
+	/** The connection that is waiting for a connect to finish, or null if there isn't one */
+	private NetworkConnection connecting;
+
+	/** The connection that is waiting for a read to finish, or null if there isn't one */
+	private NetworkConnection reading;
+
+	/** The buffer that the current read is storing data in */
+	private ByteBuffer readBuffer;
+
+	/** The connection that is waiting for a write to finish, or null if there isn't one */
+	private NetworkConnection writing;
+
+	/** The messages that the current write is sending */
+	private ByteBuffer[] writeMessages;
+
+	/** The number of meaningful entries in writeMessages */
+	private int writeCount;
+
+	/** True while a write's completion is being handled, so that a write it starts waits its turn */
+	private boolean completingWrite;
+
+	/**
+	 * Makes a transport for a socket that isn't connected yet, set up the way the given configuration says, on the next
+	 * loop
+	 */
+	SelectorTransport(NetworkConfiguration configuration) throws IOException {
+		this(SocketChannel.open(), SelectorLoop.next());
+		configuration.configureConnection(channel);
+	}
+
+	/**
+	 * Makes a transport for the given socket, which has already been set up, on the given loop
+	 */
+	SelectorTransport(SocketChannel channel, SelectorLoop loop) throws IOException {
+		this.channel = channel;
+		this.loop = loop;
+		channel.configureBlocking(false);
+
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = SelectorTransport.this.loop.register(SelectorTransport.this.channel, SelectorTransport.this);
+				} catch (IOException e) {
+					// The channel was closed before it could be registered, so there's nothing to do
+				}
+			}
+		});
+	}
+
+	@Override
+	public void connect(final InetSocketAddress address, final NetworkConnection connection) {
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (channel.connect(address)) {
+						NetworkingLibrary.connectCompleted(connection);
+					} else {
+						connecting = connection;
+						addInterest(SelectionKey.OP_CONNECT);
+					}
+				} catch (IOException e) {
+					NetworkingLibrary.connectFailed(connection);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void read(final ByteBuffer buffer, final NetworkConnection connection) {
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				// Wait until there's something to read, rather than trying now and probably finding nothing
+				readBuffer = buffer;
+				reading = connection;
+				addInterest(SelectionKey.OP_READ);
+			}
+		});
+	}
+
+	@Override
+	public void write(final ByteBuffer[] messages, final int count, final NetworkConnection connection) {
+		Runnable startWrite = new Runnable() {
+			@Override
+			public void run() {
+				writeMessages = messages;
+				writeCount = count;
+				writing = connection;
+				// The socket can usually take everything right away, in which case there's no need to wait
+				finishWrite();
+			}
+		};
+
+		if (completingWrite) {
+			// Going straight into another write would keep piling completions on top of each other
+			loop.execute(startWrite);
+		} else {
+			loop.runInLoop(startWrite);
+		}
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() throws IOException {
+		return (InetSocketAddress) channel.getRemoteAddress();
+	}
+
+	@Override
+	public void close() {
+		loop.runInLoop(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// This might be a bad choice, but let's just ignore the exception. If it won't
+					// let me close the socket there's not much I can do.
+				}
+
+				// Nothing is going to finish now, so let whatever is waiting know
+				if (reading != null) {
+					NetworkConnection connection = reading;
+					reading = null;
+					readBuffer = null;
+					NetworkingLibrary.readFailed(connection);
+				}
+				if (writing != null) {
+					NetworkConnection connection = writing;
+					writing = null;
+					writeMessages = null;
+					NetworkingLibrary.writeFailed(connection);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void ready(SelectionKey key) {
+		if (key.isConnectable()) {
+			finishConnect();
+		}
+		if (key.isValid() && key.isReadable()) {
+			finishRead();
+		}
+		if (key.isValid() && key.isWritable()) {
+			finishWrite();
+		}
+	}
+
+	/**
+	 * A helper method that finishes connecting, once the socket says it can
+	 */
+	private void finishConnect() {
+		NetworkConnection connection = connecting;
+		connecting = null;
+		removeInterest(SelectionKey.OP_CONNECT);
+
+		try {
+			channel.finishConnect();
+		} catch (IOException e) {
+			NetworkingLibrary.connectFailed(connection);
+			return;
+		}
+		NetworkingLibrary.connectCompleted(connection);
+	}
+
+	/**
+	 * A helper method that reads whatever has arrived, once the socket says there's something
+	 */
+	private void finishRead() {
+		NetworkConnection connection = reading;
+		int result;
+		try {
+			result = channel.read(readBuffer);
+		} catch (IOException e) {
+			result = Integer.MIN_VALUE;
+		}
+
+		if (result == 0) {
+			// Nothing after all, so keep waiting
+			return;
+		}
+
+		reading = null;
+		readBuffer = null;
+		removeInterest(SelectionKey.OP_READ);
+
+		if (result == Integer.MIN_VALUE) {
+			NetworkingLibrary.readFailed(connection);
+		} else {
+			NetworkingLibrary.readCompleted(connection, result);
+		}
+	}
+
+	/**
+	 * A helper method that writes as much as the socket will take. If that's everything, the write is finished;
+	 * otherwise, this waits to be called again when the socket has room.
+	 */
+	private void finishWrite() {
+		NetworkConnection connection = writing;
+		try {
+			channel.write(writeMessages, 0, writeCount);
+		} catch (IOException e) {
+			writing = null;
+			writeMessages = null;
+			removeInterest(SelectionKey.OP_WRITE);
+			NetworkingLibrary.writeFailed(connection);
+			return;
+		}
+
+		if (writeMessages[writeCount - 1].hasRemaining()) {
+			addInterest(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		writing = null;
+		writeMessages = null;
+		removeInterest(SelectionKey.OP_WRITE);
+
+		completingWrite = true;
+		NetworkingLibrary.writeCompleted(connection);
+		completingWrite = false;
+	}
+
+	/**
+	 * A helper method that starts watching for the given operation
+	 */
+	private void addInterest(int op) {
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | op);
+		}
+	}
+
+	/**
+	 * A helper method that stops watching for the given operation
+	 */
+	private void removeInterest(int op) {
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() & ~op);
+		}
+	}
+}
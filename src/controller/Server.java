@@ -1,26 +1,48 @@
 package controller;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import controller.NetworkingLibrary.MessagePriority;
+import controller.NetworkingLibrary.NetworkBinaryUpdateHandler;
 import controller.NetworkingLibrary.NetworkConnectionHandler;
+import controller.NetworkingLibrary.NetworkDatagramEndpoint;
+import controller.NetworkingLibrary.NetworkDatagramHandler;
 import controller.NetworkingLibrary.NetworkUpdateHandler;
 import model.Participant;
 import model.SimpleParticipant;
+import model.SnapshotCodec;
 import model.Participant.Direction;
-import view.PetroglyphWindow;
 import controller.NetworkingLibrary.NetworkConnection;
 import controller.NetworkingLibrary.NetworkListener;
 
 /**
- * A class to run a server version of Petroglyph. This class handles listening for client connections, keeping the gui
- * up-to-date during the connection process, sending game updates to clients, and passing clients' user input to the
- * MainController. <br>
+ * A class to run a server version of Petroglyph. This class handles listening for client connections, keeping its
+ * {@link ServerHost} up-to-date during the connection process, sending game updates to clients, and passing clients'
+ * user input to the host. The host may play some of the cavemen itself, or none of them, in which case every caveman
+ * belongs to a client. <br>
  * <br>
  * Here is the definition of Petroglyph's network protocol: <br>
  * <ol>
  * <li>When the client first connects<br>
- * No messages are sent either way until the server is ready to launch the game.</li>
+ * The client may send a CODEC_REQUEST message (see below) asking to use the binary format. If the server supports it,
+ * it replies with a CODEC_ACCEPT message, and from then on both sides use the binary format. Otherwise, no messages are
+ * sent either way until the server is ready to launch the game. The server isn't ready until every client has either
+ * sent its first message or been connected for CODEC_REQUEST_WAIT_MILLIS, so that every client's format is settled
+ * before the game starts.</li>
  * <li>Unexpected disconnects<br>
  * If at any time any connection is broken, the game is considered unplayable and all other connections, if any, are
  * immediately closed.
@@ -31,6 +53,51 @@ import controller.NetworkingLibrary.NetworkListener;
  * terminated by the same character, which is defined by a static constant in the Server class.<br>
  * However, due to rare but seemingly unavoidable corruption of data during network transfer, malformed messages should
  * be ignored. They are not cause for terminating the connection.</li>
+ * <li>Binary format<br>
+ * Once the binary format has been agreed on, messages are no longer terminated. Instead, each one is preceded by its
+ * length, as done by {@link NetworkingLibrary#useLengthPrefixedFraming}. Messages still start with the same keys, and
+ * every message other than NEW_FRAME still holds the UTF-8 encoding of the same text. NEW_FRAME messages are instead
+ * followed by the frame's number (a 4 byte int), then the number of the frame that it is a delta against (a 4 byte int,
+ * or -1 if it isn't a delta), then the time of the frame by the server's clock (an 8 byte long, in nanoseconds), then
+ * the number of cavemen (1 byte), then for each caveman the sequence number of the newest input of theirs that the
+ * frame includes (a 4 byte int, or 0 if there isn't one), then the participants encoded with {@link SnapshotCodec}. A
+ * frame's number is the server's tick that it was made on, which counts up from 0 at the frame rate given in
+ * CODEC_ACCEPT whether or not a frame is sent, so a gap in the numbers means frames were skipped. The game itself may
+ * run faster than that, in which case each tick covers several of its frames, and if the frame rate doesn't divide the
+ * game's rate evenly, ticks are up to one of the game's frames early or late. Along with the times in PONG messages,
+ * this lets a client work out when each tick happened by its own clock. Deltas are only ever sent against a frame that
+ * the client has acknowledged with a FRAME_ACK message, and only while that frame is one of the last
+ * FRAME_HISTORY_LENGTH frames, so a client needs to remember that many frames.</li>
+ * <li>Datagrams<br>
+ * Once a client is using the binary format, the server may offer to send it NEW_FRAME messages in datagrams instead, so
+ * that one lost packet doesn't hold up every frame behind it. The server sends a DATAGRAM_OFFER message, and the client
+ * accepts by sending DATAGRAM_REGISTER messages as datagrams to the offered port, or declines by ignoring the offer.
+ * Datagrams can be turned off on either side with {@link NetworkConfiguration#setDatagramsEnabled}, in which case the
+ * server never offers them or the client never accepts. Since registrations can be lost too, the client should send
+ * another one whenever a NEW_FRAME arrives over the connection, until one arrives as a datagram. Datagrams hold exactly
+ * the same NEW_FRAME messages, without any length. If the client stops acknowledging frames for FRAME_HISTORY_LENGTH
+ * frames, the server assumes datagrams aren't getting through and goes back to sending frames over the connection for
+ * good. Every other message always goes over the connection.</li>
+ * <li>Inputs<br>
+ * In the binary format, THROW_SPEAR, BEGIN_MOVEMENT and END_MOVEMENT messages also say which input they are and when
+ * they should happen: see {@link InputCommand}. The server holds each input until the boundary before its tick, and
+ * processes each client's inputs in order. An input whose tick has already passed is processed at the next boundary,
+ * and one that is too far ahead is brought forward. Since every frame says which inputs it includes, a client can start
+ * from a frame and replay the inputs that came after, to predict what the server will do with them. A THROW_SPEAR
+ * also says which frame the player was seeing, and while that spear is in the air, it's checked against the mammoth as
+ * it was in that frame, so that players aren't punished for their lag. The server only remembers
+ * {@link model.Model#MAMMOTH_HISTORY_LENGTH} of the game's usual frames of the mammoth, so it won't rewind further than
+ * that.</li>
+ * <li>Heartbeats<br>
+ * Once the binary format has been agreed on and each side has heard its first message from the other, it sends a PING
+ * message every PING_INTERVAL_MILLIS and answers every PING with a PONG. These measure the round trip time, and keep
+ * the connection busy enough that a side that hears nothing for CONNECTION_TIMEOUT_MILLIS can treat the connection as
+ * broken, without waiting for TCP to give up. Both of these are sent urgently. Text clients may be older than PING and
+ * PONG, and only send anything when their player presses a key, so neither side pings or times out a connection that
+ * uses the text format, although a PING is still answered in either format.</li>
+ * <li>Message priority<br>
+ * Round messages (START_NEW_ROUND, ROUND_WIN, and ROUND_LOSS) and all client-to-server messages are sent urgently, so
+ * they may arrive ahead of NEW_FRAME messages that were sent before them.</li>
  * <li>When the game launches<br>
  * The server will send a START_NEW_ROUND message (see below). From this point until the game finishes, both the server
  * and client may send any number of the following messages in any order.</li>
@@ -40,7 +107,8 @@ import controller.NetworkingLibrary.NetworkListener;
  * <li>NEW_FRAME<br>
  * This is the largest type of message. The message key is followed by numerous String representations of
  * {@link SimpleParticipant}s, which represent the complete state of the game during the new frame. These Strings are
- * separated by a separator character that is defined by a static constant in the Server class.</li>
+ * separated by a separator character that is defined by a static constant in the Server class. Since each frame makes
+ * the previous one obsolete, a client that falls behind may not receive every frame.</li>
  * <li>ROUND_WIN<br>
  * This message indicates that the players won a round. It will eventually be followed by a START_NEW_ROUND message,
  * without any other messages coming from the server in between them. This message contains no extra data: the message
@@ -54,6 +122,25 @@ import controller.NetworkingLibrary.NetworkListener;
  * server will promptly close all its connections after sending this message, and clients will promptly close their
  * connections after receiving it. This message has no extra data: the message key is immediately followed by the
  * message terminator.</li>
+ * <li>CODEC_ACCEPT<br>
+ * This message is only sent in reply to a CODEC_REQUEST, and indicates that the server will use the binary format for
+ * every message after this one. The message key is followed by the version of the binary format, which is defined by a
+ * static constant in the Server class, then a field separator character, then the number of frames the server sends
+ * per second, which is how often its ticks happen.</li>
+ * <li>DATAGRAM_OFFER<br>
+ * This message is only sent in the binary format, and offers to send NEW_FRAME messages in datagrams. The message key
+ * is followed by the port that the server receives datagrams on, then a field separator character that is defined by a
+ * static constant in the Server class, then a token that the client must send back to register.</li>
+ * <li>PING and PONG<br>
+ * These are sent in both directions. A PING's key is followed by the time that it was sent, as a decimal number in
+ * whatever units the sender likes. The other side immediately replies with a PONG, whose key is followed by exactly the
+ * same time, so that the sender can see how long the round trip took, then a field separator character, then the time
+ * that the PONG was sent by the replier's clock, in nanoseconds. A client uses the server's time to estimate the offset
+ * between their clocks.</li>
+ * <li>PLAYER_ASSIGNMENT<br>
+ * This message is only sent in the binary format, right before each START_NEW_ROUND message, and tells the client which
+ * caveman it controls, so that it can predict where that caveman will be before the server's frames say so. The message
+ * key is followed only by the caveman's number, which is also its index among the cavemen in each frame.</li>
  * </ul>
  * <h2>Client to server messages</h2>
  * <li>THROW_SPEAR<br>
@@ -67,79 +154,247 @@ import controller.NetworkingLibrary.NetworkListener;
  * This message indicates that the sending client's player wants their caveman to stop moving in a certain direction.
  * The message key is followed only by a String representation of a {@link Participant.Direction}, which is the
  * direction the player wants to stop moving in.</li>
+ * <li>CODEC_REQUEST<br>
+ * This message may only be sent immediately after connecting, and asks the server to switch to the binary format. The
+ * message key is followed by the version of the binary format that the client supports. The client should keep using
+ * the text format until it receives a CODEC_ACCEPT message. Once the game has launched, text NEW_FRAME messages may
+ * already be on their way, so the server ignores any CODEC_REQUEST that arrives after that.</li>
+ * <li>FRAME_ACK<br>
+ * This message is only sent in the binary format, and tells the server that the client has received a NEW_FRAME
+ * message, so that later frames can be sent as deltas against it. The message key is followed only by the frame's
+ * number.</li>
+ * <li>DATAGRAM_REGISTER<br>
+ * This message is only sent as a datagram, in reply to a DATAGRAM_OFFER, and tells the server where to send frames.
+ * The message key is followed only by the token from the offer.</li>
  * </ul>
  * 
  * @author Sam Thayer
  */
-public class Server implements NetworkConnectionHandler, NetworkUpdateHandler, GameUpdateHandler {
+public class Server implements NetworkConnectionHandler, NetworkUpdateHandler, NetworkBinaryUpdateHandler, NetworkDatagramHandler,
+		GameUpdateHandler {
 	/** The object used to listen for new Clients */
 	private NetworkListener listener;
-	/** A list of connections to Clients */
-	private ArrayList<NetworkConnection> allClients;
+	/** A list of connections to Clients. These lists are copied on write, since the game clock iterates them. */
+	private List<NetworkConnection> allClients;
+	/** The connections in allClients that use the text format */
+	private List<NetworkConnection> textClients;
+	/** The connections in allClients that use the binary format */
+	private List<NetworkConnection> binaryClients;
+	/** The clients whose format is settled, because they've sent a message or had long enough to ask for the binary one */
+	private Set<NetworkConnection> settledClients;
+	/** True once the host has been told that the game can launch, so that it's only told once */
+	private volatile boolean announcedReady;
+	/** True once the first round has started, after which clients can't switch formats. This is only set holding the lock. */
+	private boolean launched;
+	/** A reusable buffer for encoding NEW_FRAME messages in the binary format */
+	private ByteBuffer frameBuffer;
+	/** The last FRAME_HISTORY_LENGTH frames sent to binary clients, indexed by frame number modulo the length */
+	private SimpleParticipant[][] sentFrames;
+	/** The number of the next frame, which is the number of ticks so far. Acks are checked against this on another thread. */
+	private volatile int nextFrameNumber;
+	/** The newest frame number that each binary client has acknowledged */
+	private ConcurrentHashMap<NetworkConnection, Integer> acknowledgedFrames;
+	/** A reusable copy of binaryClients during newFrame(), so that it can't change partway through */
+	private ArrayList<NetworkConnection> frameClients;
+	/** A reusable list of the binary clients that share a baseline during newFrame() */
+	private ArrayList<NetworkConnection> frameRecipients;
+	/** A reusable array of each binary client's baseline during newFrame() */
+	private int[] clientBaselines;
+	/** The endpoint that frames are sent to clients from as datagrams, or null if datagrams aren't available */
+	private NetworkDatagramEndpoint datagramEndpoint;
+	/** The token that each binary client was offered datagrams with, until it registers or gives up */
+	private ConcurrentHashMap<NetworkConnection, Long> datagramTokens;
+	/** Where to send datagrams for each binary client that registered for them */
+	private ConcurrentHashMap<NetworkConnection, DatagramRoute> datagramRoutes;
+	/** A reusable list of the datagram addresses that share a baseline during newFrame() */
+	private ArrayList<InetSocketAddress> datagramRecipients;
+	/** Makes the tokens in DATAGRAM_OFFER messages */
+	private SecureRandom tokenGenerator;
+	/** How healthy the connection to each binary client is, once it has sent its first message */
+	private ConcurrentHashMap<NetworkConnection, HeartbeatMonitor> heartbeats;
+	/** Sends PING messages, and checks for clients that have gone quiet. This runs on the timer that every Server shares. */
+	private TimerTask heartbeatTask;
+	/** The inputs from binary clients that are waiting for their tick, indexed by caveman number */
+	private ArrayList<ArrayDeque<InputCommand>> pendingInputs;
+	/** The sequence number of the newest input that has been processed for each caveman. Only the game clock touches this. */
+	private int[] processedInputs;
+	/** The sequence number of the newest input that has arrived for each caveman */
+	private int[] receivedInputs;
+	/** The tick of the newest input that has arrived for each caveman */
+	private int[] receivedInputTicks;
+	/** True once this Server has been closed, so that losing a client is only handled once */
+	private volatile boolean isClosed;
 	/** The number of clients that are needed for this game to start */
 	private int remotePlayersNeeded;
 
-	/**
-	 * A reference to the main application window, used for communicating with the user during connection
-	 */
-	private PetroglyphWindow window;
-	/** A reference to the game's MainController */
-	private MainController controller;
+	/** Whatever is running this Server, which is kept up to date during connection and is given the clients' inputs */
+	private ServerHost host;
 
 	// Constants used in the network protocol
 	public static final char MESSAGE_TERMINATOR = '\n';
 	public static final char PARTICIPANT_SEPERATOR = '\t';
+	public static final char FIELD_SEPERATOR = ' ';
 
 	public static final String NEW_FRAME_KEY = "0";
 	public static final String START_ROUND_KEY = "1";
 	public static final String ROUND_WIN_KEY = "2";
 	public static final String ROUND_LOSS_KEY = "3";
+	public static final String CODEC_ACCEPT_KEY = "4";
+	public static final String DATAGRAM_OFFER_KEY = "5";
+	public static final String PLAYER_ASSIGNMENT_KEY = "8";
 
 	public static final String THROW_SPEAR_KEY = "0";
 	public static final String BEGIN_MOVEMENT_KEY = "1";
 	public static final String END_MOVEMENT_KEY = "2";
+	public static final String CODEC_REQUEST_KEY = "3";
+	public static final String FRAME_ACK_KEY = "4";
+	public static final String DATAGRAM_REGISTER_KEY = "5";
+
+	// These are sent in both directions
+	public static final String PING_KEY = "6";
+	public static final String PONG_KEY = "7";
+
+	public static final long PING_INTERVAL_MILLIS = 250;
+	public static final long CONNECTION_TIMEOUT_MILLIS = 5000;
+
+	/** How long a client has to send a CODEC_REQUEST before it's taken to be a text client, which stays quiet until launch */
+	public static final long CODEC_REQUEST_WAIT_MILLIS = 1000;
+
+	public static final String BINARY_FORMAT_VERSION = "7";
+
+	/**
+	 * The number of frames per second to send clients, which can be set with the petroglyph.server.frameRate property. It
+	 * is never more than the game's tick rate, since there would be nothing new to send, and never less than 1, since
+	 * ticks are numbered by it and clients are told it.
+	 */
+	public static final int FRAMES_PER_SECOND = Math.max(
+			Math.min(Integer.getInteger("petroglyph.server.frameRate", GameEngine.DEFAULT_TICKS_PER_SECOND), GameEngine.TICKS_PER_SECOND), 1);
+
+	public static final int FRAME_HISTORY_LENGTH = 32;
+	public static final int NO_BASELINE = -1;
 
 	public static final int MESSAGE_KEY_LENGTH = 1;
 
+	/** The number of cavemen in every game */
+	private static final int CAVEMAN_COUNT = 3;
+
+	/** The furthest ahead of the current tick that an input may ask to be processed */
+	private static final int MAX_INPUT_LEAD = FRAME_HISTORY_LENGTH / 2;
+
+	/** The timer that runs every Server's heartbeat, or null until the first Server is made */
+	private static Timer sharedHeartbeatTimer;
+
 	/**
-	 * Tries to create a server that will immediately start listening for clients.
+	 * Tries to create a server that will immediately start listening for clients. The host controls the given number of
+	 * cavemen itself, which may be anything from 0 to 2, and clients are found for the rest.
 	 * 
 	 * @throws IOException
 	 *             If the server can't access the network. If this is thrown, the created Server object should not be used.
 	 */
-	public Server(PetroglyphWindow window, MainController controller, int localPlayerCount) throws IOException {
-		this.window = window;
-		this.controller = controller;
-		allClients = new ArrayList<NetworkConnection>();
-		remotePlayersNeeded = 3 - localPlayerCount;
-		listener = NetworkingLibrary.openServer(this, MESSAGE_TERMINATOR);
+	public Server(ServerHost host, int localPlayerCount) throws IOException {
+		this(host, localPlayerCount, new NetworkConfiguration());
+	}
+
+	/**
+	 * Tries to create a server that will immediately start listening for clients, with its port, socket options and
+	 * threads set up the way the given configuration says.
+	 * 
+	 * @throws IOException
+	 *             If the server can't access the network. If this is thrown, the created Server object should not be used.
+	 */
+	public Server(ServerHost host, int localPlayerCount, NetworkConfiguration configuration) throws IOException {
+		if (localPlayerCount < 0 || localPlayerCount >= CAVEMAN_COUNT) {
+			throw new IllegalArgumentException("A server needs at least one client, so the host can't control every caveman.");
+		}
+		this.host = host;
+		allClients = new CopyOnWriteArrayList<NetworkConnection>();
+		textClients = new CopyOnWriteArrayList<NetworkConnection>();
+		binaryClients = new CopyOnWriteArrayList<NetworkConnection>();
+		settledClients = new HashSet<NetworkConnection>();
+		announcedReady = false;
+		launched = false;
+		sentFrames = new SimpleParticipant[FRAME_HISTORY_LENGTH][];
+		nextFrameNumber = 0;
+		acknowledgedFrames = new ConcurrentHashMap<NetworkConnection, Integer>();
+		frameClients = new ArrayList<NetworkConnection>();
+		frameRecipients = new ArrayList<NetworkConnection>();
+		clientBaselines = new int[0];
+		datagramTokens = new ConcurrentHashMap<NetworkConnection, Long>();
+		datagramRoutes = new ConcurrentHashMap<NetworkConnection, DatagramRoute>();
+		datagramRecipients = new ArrayList<InetSocketAddress>();
+		tokenGenerator = new SecureRandom();
+		heartbeats = new ConcurrentHashMap<NetworkConnection, HeartbeatMonitor>();
+		pendingInputs = new ArrayList<ArrayDeque<InputCommand>>();
+		for (int i = 0; i < CAVEMAN_COUNT; i++) {
+			pendingInputs.add(new ArrayDeque<InputCommand>());
+		}
+		processedInputs = new int[CAVEMAN_COUNT];
+		receivedInputs = new int[CAVEMAN_COUNT];
+		receivedInputTicks = new int[CAVEMAN_COUNT];
+		isClosed = false;
+		remotePlayersNeeded = CAVEMAN_COUNT - localPlayerCount;
+		listener = NetworkingLibrary.openServer(this, MESSAGE_TERMINATOR, configuration);
 
 		if (listener == null) {
 			throw new IOException();
 		}
+
+		heartbeatTask = new heartbeat();
+		heartbeatTimer().schedule(heartbeatTask, PING_INTERVAL_MILLIS, PING_INTERVAL_MILLIS);
+
+		// If this fails, or datagrams are turned off, every frame just goes over the connections
+		if (configuration.isDatagramsEnabled()) {
+			datagramEndpoint = NetworkingLibrary.openDatagramEndpoint(this, 0, configuration);
+		}
+	}
+
+	/**
+	 * A helper method that returns the timer that every Server's heartbeat runs on, creating it the first time it's
+	 * needed. One thread is plenty for any number of Servers, since a heartbeat only queues a few messages.
+	 */
+	private static synchronized Timer heartbeatTimer() {
+		if (sharedHeartbeatTimer == null) {
+			sharedHeartbeatTimer = new Timer("Petroglyph server heartbeat", true);
+		}
+		return sharedHeartbeatTimer;
 	}
 
 	/**
 	 * Closes this Server by disconnecting all its clients.
 	 */
 	public void close() {
+		isClosed = true;
+		heartbeatTask.cancel();
+		// Let the shared timer forget about this Server, instead of waiting for the task's next turn
+		heartbeatTimer().purge();
 		NetworkingLibrary.closeListener(listener);
 		for (NetworkConnection s : allClients) {
 			NetworkingLibrary.closeConnection(s);
 		}
+		if (datagramEndpoint != null) {
+			NetworkingLibrary.closeDatagramEndpoint(datagramEndpoint);
+		}
 	}
 
 	@Override
-	public void initialConnectionUpdate(NetworkConnection connection, boolean success) {
+	public void initialConnectionUpdate(final NetworkConnection connection, boolean success) {
 		if (success) {
 			allClients.add(connection);
-			window.newConnectionAsServer(remotePlayersNeeded - allClients.size());
+			textClients.add(connection);
+			host.clientConnected(remotePlayersNeeded - allClients.size());
 			NetworkingLibrary.getData(connection, this);
+
+			// Text clients don't say anything until the game starts, so a client that stays quiet this long is one
+			heartbeatTimer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					settled(connection);
+				}
+			}, CODEC_REQUEST_WAIT_MILLIS);
 		}
 
-		if (allClients.size() == remotePlayersNeeded) {
-			window.readyToLaunchAsServer();
-		} else {
+		// The host is told the game can launch once the last client's format is settled
+		if (allClients.size() < remotePlayersNeeded) {
 			NetworkingLibrary.resumeAcceptingClients(listener);
 		}
 	}
@@ -147,17 +402,99 @@ public class Server implements NetworkConnectionHandler, NetworkUpdateHandler, G
 	@Override
 	public void connectionUpdate(NetworkConnection connection, boolean success, String message) {
 		if (!success) {
-			allClients.remove(connection);
-			close();
-			controller.lostConnection();
+			lostClient(connection);
 			return;
 		}
 
 		newMessage(connection, message);
 		// Ignore the return value. As per the Petroglyph protocol, malformed messages
 		// are ignored.
-		NetworkingLibrary.getData(connection, this);
+		heardFrom(connection);
+		settled(connection);
+		continueReading(connection);
+	}
+
+	@Override
+	public void binaryConnectionUpdate(NetworkConnection connection, boolean success, ByteBuffer message) {
+		if (!success) {
+			lostClient(connection);
+			return;
+		}
 
+		// Clients only send short messages, and in the binary format they are the same text as ever
+		newMessage(connection, StandardCharsets.UTF_8.decode(message).toString());
+		heardFrom(connection);
+		settled(connection);
+		continueReading(connection);
+	}
+
+	/**
+	 * A helper method that notes that the given client is still there. The first time a binary client is heard from, its
+	 * format has been settled, so it starts getting PING messages. Text clients never get them, since they may not answer.
+	 */
+	private void heardFrom(NetworkConnection connection) {
+		HeartbeatMonitor monitor = heartbeats.get(connection);
+		if (monitor == null) {
+			if (!NetworkingLibrary.isLengthPrefixed(connection)) {
+				// A quiet text client is just one whose player isn't pressing anything
+				return;
+			}
+			heartbeats.put(connection, new HeartbeatMonitor());
+		} else {
+			monitor.heardFrom();
+		}
+	}
+
+	/**
+	 * A helper method that notes that the given client's format is settled, and tells the host that the game can launch
+	 * once every client's is. Until then, a client may still switch formats, so the game mustn't start.
+	 */
+	private void settled(NetworkConnection connection) {
+		if (announcedReady) {
+			return;
+		}
+
+		synchronized (this) {
+			settledClients.add(connection);
+			if (isClosed || announcedReady || allClients.size() < remotePlayersNeeded || !settledClients.containsAll(allClients)) {
+				return;
+			}
+			announcedReady = true;
+		}
+		host.readyToLaunch();
+	}
+
+	/**
+	 * A helper method that closes everything after a connection to a client fails
+	 */
+	private void lostClient(NetworkConnection connection) {
+		// The heartbeat may notice a client is gone at the same time as its connection does
+		synchronized (this) {
+			if (isClosed) {
+				return;
+			}
+
+			allClients.remove(connection);
+			textClients.remove(connection);
+			binaryClients.remove(connection);
+			acknowledgedFrames.remove(connection);
+			datagramTokens.remove(connection);
+			datagramRoutes.remove(connection);
+			heartbeats.remove(connection);
+			close();
+		}
+		host.lostConnection();
+	}
+
+	/**
+	 * A helper method that waits for the next message from the given client, in whichever format it is using
+	 */
+	private void continueReading(NetworkConnection connection) {
+		if (NetworkingLibrary.isLengthPrefixed(connection)) {
+			NetworkingLibrary.getBinaryData(connection, this);
+		} else {
+			NetworkingLibrary.getData(connection, this);
+		}
 	}
 
 	/**
@@ -174,23 +511,77 @@ public class Server implements NetworkConnectionHandler, NetworkUpdateHandler, G
 			String key = message.substring(0, MESSAGE_KEY_LENGTH);
 			message = message.substring(MESSAGE_KEY_LENGTH);
 
-			int playerNum = 2;
-			if (allClients.size() == 2) {
-				// If there are two clients connected (the only possibility other than 1) then
-				// figure out which client this message came from
-				playerNum = allClients.get(0) == connection ? 1 : 2;
+			int playerNum = playerNumberOf(connection);
+
+			boolean isInput = key.equals(THROW_SPEAR_KEY) || key.equals(BEGIN_MOVEMENT_KEY) || key.equals(END_MOVEMENT_KEY);
+			if (isInput && NetworkingLibrary.isLengthPrefixed(connection)) {
+				// Binary clients' inputs wait for their tick
+				return queueInput(playerNum, InputCommand.parse(key, message));
 			}
 
 			if (key.equals(THROW_SPEAR_KEY)) {
-				controller.tryThrowSpear(playerNum);
+				host.tryThrowSpear(playerNum);
 			}
 
 			else if (key.equals(BEGIN_MOVEMENT_KEY)) {
-				controller.beginMovement(playerNum, Direction.valueOf(message));
+				host.beginMovement(playerNum, Direction.valueOf(message));
 			}
 
 			else if (key.equals(END_MOVEMENT_KEY)) {
-				controller.endMovement(playerNum, Direction.valueOf(message));
+				host.endMovement(playerNum, Direction.valueOf(message));
+			}
+
+			else if (key.equals(CODEC_REQUEST_KEY)) {
+				if (!message.equals(BINARY_FORMAT_VERSION) || NetworkingLibrary.isLengthPrefixed(connection)) {
+					// Either we don't know this format, or we've already switched. Either way, stick with what we have
+					return false;
+				}
+
+				// Starting the game waits for this, so no frame can be queued in the text format behind the acceptance
+				synchronized (this) {
+					if (launched) {
+						// A text frame could already be waiting behind an urgent acceptance, which would garble it
+						return false;
+					}
+
+					// The acceptance is the last text message, so it has to go out before anything else does
+					NetworkingLibrary.send(connection, CODEC_ACCEPT_KEY + BINARY_FORMAT_VERSION + FIELD_SEPERATOR + FRAMES_PER_SECOND,
+							MessagePriority.urgent);
+					NetworkingLibrary.useLengthPrefixedFraming(connection);
+					textClients.remove(connection);
+					binaryClients.add(connection);
+				}
+				offerDatagrams(connection);
+			}
+
+			else if (key.equals(PING_KEY)) {
+				// Answer right away, so that the round trip is as true as it can be
+				Long.parseLong(message);
+				NetworkingLibrary.send(connection, PONG_KEY + message + FIELD_SEPERATOR + System.nanoTime(), MessagePriority.urgent);
+			}
+
+			else if (key.equals(PONG_KEY)) {
+				// We don't need the client's clock, only our own time that it echoed
+				int separator = message.indexOf(FIELD_SEPERATOR);
+				long sentAt = Long.parseLong(separator == -1 ? message : message.substring(0, separator));
+				HeartbeatMonitor monitor = heartbeats.get(connection);
+				if (monitor == null || !monitor.pongReceived(sentAt)) {
+					return false;
+				}
+			}
+
+			else if (key.equals(FRAME_ACK_KEY)) {
+				int frameNumber = Integer.parseInt(message);
+				if (frameNumber < 0 || frameNumber >= nextFrameNumber) {
+					// We never sent that frame
+					return false;
+				}
+
+				// Acks can't arrive out of order, but keep the newest just in case
+				Integer previous = acknowledgedFrames.get(connection);
+				if (previous == null || previous < frameNumber) {
+					acknowledgedFrames.put(connection, frameNumber);
+				}
 			}
 
 			else {
@@ -206,37 +597,361 @@ public class Server implements NetworkConnectionHandler, NetworkUpdateHandler, G
 		return true;
 	}
 
+	/**
+	 * A helper method that holds on to an input from a binary client until its tick comes. Returns false if it's out of
+	 * order.
+	 */
+	private boolean queueInput(int playerNum, InputCommand input) {
+		ArrayDeque<InputCommand> queue = pendingInputs.get(playerNum);
+		synchronized (queue) {
+			if (input.sequence <= receivedInputs[playerNum]) {
+				// We've already got this one
+				return false;
+			}
+
+			// Inputs are processed in order, and a client can't hold its inputs back for long
+			int tick = Math.min(input.tick, nextFrameNumber + MAX_INPUT_LEAD);
+			tick = Math.max(tick, receivedInputTicks[playerNum]);
+
+			receivedInputs[playerNum] = input.sequence;
+			receivedInputTicks[playerNum] = tick;
+			queue.add(new InputCommand(input.key, input.direction, input.sequence, tick, input.viewTick));
+		}
+		return true;
+	}
+
+	/**
+	 * A helper method that processes every input whose tick is no later than the given one. This is only called between
+	 * ticks, so that every input lands on a tick boundary, the same way clients predict it.
+	 */
+	private void processInputs(int tick) {
+		for (int playerNum = 0; playerNum < CAVEMAN_COUNT; playerNum++) {
+			ArrayDeque<InputCommand> queue = pendingInputs.get(playerNum);
+			while (true) {
+				InputCommand input;
+				synchronized (queue) {
+					if (queue.isEmpty() || queue.peek().tick > tick) {
+						break;
+					}
+					input = queue.poll();
+				}
+
+				if (input.key.equals(THROW_SPEAR_KEY)) {
+					// The spear is thrown on the next tick, so with no lag at all, the player would have been seeing that one
+					int rewind = input.viewTick < 0 ? 0 : Math.max(nextFrameNumber - input.viewTick, 0);
+					host.tryThrowSpear(playerNum, rewind * 1000 / FRAMES_PER_SECOND);
+				} else if (input.key.equals(BEGIN_MOVEMENT_KEY)) {
+					host.beginMovement(playerNum, input.direction);
+				} else {
+					host.endMovement(playerNum, input.direction);
+				}
+				processedInputs[playerNum] = input.sequence;
+			}
+		}
+	}
+
+	/**
+	 * A helper method that returns the number of the caveman that the given client controls. The host's cavemen come
+	 * first, and the clients get the rest in the order they connected.
+	 */
+	private int playerNumberOf(NetworkConnection connection) {
+		return CAVEMAN_COUNT - remotePlayersNeeded + allClients.indexOf(connection);
+	}
+
+	/**
+	 * A helper method that returns the connection to the client that controls the given caveman, or null if no client
+	 * does
+	 */
+	private NetworkConnection connectionFor(int playerNum) {
+		int index = playerNum - (CAVEMAN_COUNT - remotePlayersNeeded);
+		if (index < 0 || index >= allClients.size()) {
+			return null;
+		}
+		return allClients.get(index);
+	}
+
+	/**
+	 * Returns the smoothed round trip time to the client that controls the given caveman, in milliseconds. Returns 0 if
+	 * no client controls that caveman, or if it hasn't answered a PING yet.
+	 */
+	public double getRoundTripTime(int playerNum) {
+		HeartbeatMonitor monitor = monitorFor(playerNum);
+		return monitor == null ? 0 : monitor.getRoundTripTime();
+	}
+
+	/**
+	 * Returns how far the round trip time to the client that controls the given caveman usually strays from the smoothed
+	 * one, in milliseconds. Returns 0 if no client controls that caveman, or if it hasn't answered a PING yet.
+	 */
+	public double getJitter(int playerNum) {
+		HeartbeatMonitor monitor = monitorFor(playerNum);
+		return monitor == null ? 0 : monitor.getJitter();
+	}
+
+	/**
+	 * A helper method that returns the heartbeat monitor for the client that controls the given caveman, or null if there
+	 * isn't one
+	 */
+	private HeartbeatMonitor monitorFor(int playerNum) {
+		NetworkConnection connection = connectionFor(playerNum);
+		return connection == null ? null : heartbeats.get(connection);
+	}
+
+	/**
+	 * A helper method that offers to send frames to the given binary client as datagrams, if we can
+	 */
+	private void offerDatagrams(NetworkConnection connection) {
+		if (datagramEndpoint == null) {
+			return;
+		}
+
+		long token = tokenGenerator.nextLong();
+		datagramTokens.put(connection, token);
+		// This has to stay behind the CODEC_ACCEPT, which is also urgent
+		NetworkingLibrary.send(connection,
+				DATAGRAM_OFFER_KEY + NetworkingLibrary.getDatagramPort(datagramEndpoint) + FIELD_SEPERATOR + token, MessagePriority.urgent);
+	}
+
+	@Override
+	public void datagramUpdate(NetworkDatagramEndpoint endpoint, InetSocketAddress source, ByteBuffer message) {
+		// The only datagrams that clients send are registrations. Anything else is ignored.
+		String text = StandardCharsets.UTF_8.decode(message).toString();
+		if (!text.startsWith(DATAGRAM_REGISTER_KEY)) {
+			return;
+		}
+
+		long token;
+		try {
+			token = Long.parseLong(text.substring(MESSAGE_KEY_LENGTH));
+		} catch (NumberFormatException e) {
+			return;
+		}
+
+		for (Map.Entry<NetworkConnection, Long> offer : datagramTokens.entrySet()) {
+			if (offer.getValue() == token) {
+				// Each token only works once, so a client that falls back to the connection stays there
+				datagramTokens.remove(offer.getKey());
+				datagramRoutes.put(offer.getKey(), new DatagramRoute(source, nextFrameNumber));
+				return;
+			}
+		}
+	}
+
+	@Override
+	public int getUpdateRate() {
+		return FRAMES_PER_SECOND;
+	}
+
 	@Override
 	public void newFrame(SimpleParticipant[] participants) {
-		StringBuilder message = new StringBuilder();
-		for (SimpleParticipant p : participants) {
-			message.append(p.toString() + PARTICIPANT_SEPERATOR);
+		// Every tick gets a number, even if nobody is sent its frame
+		int frameNumber = nextFrameNumber;
+		long frameTime = System.nanoTime();
+		sentFrames[frameNumber % FRAME_HISTORY_LENGTH] = participants;
+		// Count the frame before sending it, so an ack for it can't arrive before we know it was sent
+		nextFrameNumber = frameNumber + 1;
+
+		// A client that falls behind only needs the newest frame, so older ones can be dropped. The text format is what
+		// clients that don't know the current binary format fall back to, so it stays exactly as it always was.
+		if (!textClients.isEmpty()) {
+			StringBuilder message = new StringBuilder(NEW_FRAME_KEY);
+			for (SimpleParticipant p : participants) {
+				message.append(p.toString()).append(PARTICIPANT_SEPERATOR);
+			}
+			message.deleteCharAt(message.length() - 1);
+
+			NetworkingLibrary.broadcastSnapshot(textClients, message.toString());
 		}
-		message.deleteCharAt(message.length() - 1);
 
-		for (NetworkConnection c : allClients) {
-			NetworkingLibrary.send(c, NEW_FRAME_KEY + message.toString());
+		if (!binaryClients.isEmpty()) {
+			newBinaryFrame(participants, frameNumber, frameTime);
 		}
+
+		// This frame is done, so anything processed now shows up in the next one
+		processInputs(frameNumber + 1);
+	}
+
+	/**
+	 * A helper method that sends a frame to every binary client. Each client gets a delta against the newest frame it has
+	 * acknowledged, or a whole frame if it doesn't have a usable one. Clients that share a baseline share one encoding.
+	 */
+	private void newBinaryFrame(SimpleParticipant[] participants, int frameNumber, long frameTime) {
+		frameClients.clear();
+		frameClients.addAll(binaryClients);
+		int clientCount = frameClients.size();
+		if (clientBaselines.length < clientCount) {
+			clientBaselines = new int[clientCount];
+		}
+		for (int i = 0; i < clientCount; i++) {
+			clientBaselines[i] = baselineFor(frameClients.get(i), frameNumber, participants.length);
+			checkDatagramRoute(frameClients.get(i), frameNumber);
+		}
+
+		for (int i = 0; i < clientCount; i++) {
+			int baseline = clientBaselines[i];
+			if (baseline == Integer.MIN_VALUE) {
+				// This client was already sent the frame along with an earlier one
+				continue;
+			}
+
+			encodeFrame(participants, frameNumber, baseline, frameTime);
+			// Frames that are too big to fit in a datagram still go over the connection
+			boolean fitsInDatagram = frameBuffer.remaining() <= NetworkingLibrary.MAX_DATAGRAM_SIZE;
+
+			frameRecipients.clear();
+			datagramRecipients.clear();
+			for (int j = i; j < clientCount; j++) {
+				if (clientBaselines[j] == baseline) {
+					DatagramRoute route = datagramRoutes.get(frameClients.get(j));
+					if (route != null && fitsInDatagram) {
+						datagramRecipients.add(route.address);
+					} else {
+						frameRecipients.add(frameClients.get(j));
+					}
+					clientBaselines[j] = Integer.MIN_VALUE;
+				}
+			}
+
+			// These copy the frame, so frameBuffer can be reused right away
+			if (!frameRecipients.isEmpty()) {
+				NetworkingLibrary.broadcastSnapshot(frameRecipients, frameBuffer);
+			}
+			if (!datagramRecipients.isEmpty()) {
+				NetworkingLibrary.broadcastDatagram(datagramEndpoint, datagramRecipients, frameBuffer);
+			}
+		}
+	}
+
+	/**
+	 * A helper method that returns the number of the frame that the given client's next frame should be a delta against,
+	 * or NO_BASELINE if it should be a whole frame.
+	 */
+	private int baselineFor(NetworkConnection connection, int frameNumber, int participantCount) {
+		Integer acknowledged = acknowledgedFrames.get(connection);
+		if (acknowledged == null || frameNumber - acknowledged >= FRAME_HISTORY_LENGTH) {
+			// Either it hasn't acknowledged anything, or what it has is too old for us to still have
+			return NO_BASELINE;
+		}
+
+		if (sentFrames[acknowledged % FRAME_HISTORY_LENGTH].length != participantCount) {
+			// Deltas can't add or remove participants
+			return NO_BASELINE;
+		}
+
+		return acknowledged;
+	}
+
+	/**
+	 * A helper method that stops sending datagrams to the given client if it hasn't acknowledged any frames in too long
+	 */
+	private void checkDatagramRoute(NetworkConnection connection, int frameNumber) {
+		DatagramRoute route = datagramRoutes.get(connection);
+		if (route == null) {
+			return;
+		}
+
+		Integer acknowledged = acknowledgedFrames.get(connection);
+		int lastHeardFrom = acknowledged == null ? route.sinceFrame : Math.max(acknowledged, route.sinceFrame);
+		if (frameNumber - lastHeardFrom >= FRAME_HISTORY_LENGTH) {
+			// Datagrams aren't getting through, so go back to the connection
+			datagramRoutes.remove(connection);
+		}
+	}
+
+	/**
+	 * A helper method that fills frameBuffer with a binary NEW_FRAME message, ready to be sent
+	 */
+	private void encodeFrame(SimpleParticipant[] participants, int frameNumber, int baseline, long frameTime) {
+		int size = MESSAGE_KEY_LENGTH + 17 + 4 * CAVEMAN_COUNT + Math.max(SnapshotCodec.maxEncodedSize(participants.length),
+				SnapshotCodec.maxEncodedDeltaSize(participants.length));
+		if (frameBuffer == null || frameBuffer.capacity() < size) {
+			frameBuffer = ByteBuffer.allocate(size);
+		}
+
+		frameBuffer.clear();
+		frameBuffer.put((byte) NEW_FRAME_KEY.charAt(0));
+		frameBuffer.putInt(frameNumber);
+		frameBuffer.putInt(baseline);
+		frameBuffer.putLong(frameTime);
+		frameBuffer.put((byte) CAVEMAN_COUNT);
+		for (int processed : processedInputs) {
+			frameBuffer.putInt(processed);
+		}
+		if (baseline == NO_BASELINE) {
+			SnapshotCodec.encode(participants, frameBuffer);
+		} else {
+			SnapshotCodec.encodeDelta(sentFrames[baseline % FRAME_HISTORY_LENGTH], participants, frameBuffer);
+		}
+		frameBuffer.flip();
 	}
 
 	@Override
 	public void startRound(int level) {
-		for (NetworkConnection c : allClients)
-			NetworkingLibrary.send(c, START_ROUND_KEY + level);
+		// Nothing but urgent messages has been sent so far, but frames are about to be, so no client may switch formats now
+		synchronized (this) {
+			launched = true;
+		}
+
+		// Inputs that were waiting when the last round ended count towards this one
+		processInputs(Integer.MAX_VALUE);
+
+		// Binary clients predict their own caveman, so they need to know which one it is
+		for (NetworkConnection connection : binaryClients) {
+			NetworkingLibrary.send(connection, PLAYER_ASSIGNMENT_KEY + playerNumberOf(connection), MessagePriority.urgent);
+		}
+		NetworkingLibrary.broadcast(allClients, START_ROUND_KEY + level, MessagePriority.urgent);
 	}
 
 	@Override
 	public void roundWin(GameEngine engine) {
-		for (NetworkConnection c : allClients) {
-			NetworkingLibrary.send(c, ROUND_WIN_KEY);
-		}
+		NetworkingLibrary.broadcast(allClients, ROUND_WIN_KEY, MessagePriority.urgent);
 	}
 
 	@Override
 	public void roundLoss() {
-		for (NetworkConnection c : allClients) {
-			NetworkingLibrary.send(c, ROUND_LOSS_KEY);
-		}
+		NetworkingLibrary.broadcast(allClients, ROUND_LOSS_KEY, MessagePriority.urgent);
 		close();
 	}
+
+	/**
+	 * Sends every binary client that has been heard from a PING, and gives up on any that have been quiet for too long
+	 * 
+	 * @author Sam Thayer
+	 */
+	private class heartbeat extends TimerTask {
+		@Override
+		public void run() {
+			try {
+				for (Map.Entry<NetworkConnection, HeartbeatMonitor> client : heartbeats.entrySet()) {
+					if (client.getValue().isTimedOut(CONNECTION_TIMEOUT_MILLIS)) {
+						// Losing any client ends the game, so there's no need to check the rest
+						lostClient(client.getKey());
+						return;
+					}
+					NetworkingLibrary.send(client.getKey(), PING_KEY + System.nanoTime(), MessagePriority.urgent);
+				}
+			} catch (RuntimeException e) {
+				// The timer is shared, so letting this escape would stop every other Server's heartbeat too
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Where to send a client's frames as datagrams
+	 * 
+	 * @author Sam Thayer
+	 */
+	private static class DatagramRoute {
+		/** The address that the client registered from */
+		private final InetSocketAddress address;
+
+		/** The number of the first frame that could have been sent to address */
+		private final int sinceFrame;
+
+		private DatagramRoute(InetSocketAddress address, int sinceFrame) {
+			this.address = address;
+			this.sinceFrame = sinceFrame;
+		}
+	}
 }
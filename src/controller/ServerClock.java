@@ -0,0 +1,151 @@
+package controller;
+
+/**
+ * A client's idea of what time it is on the server. The offset between the two clocks is estimated the way NTP does it:
+ * each PONG from the server says what the server's clock read when it answered, and assuming that happened halfway
+ * through the round trip gives one estimate of the offset. The estimate from the quickest of the last few round trips
+ * is the one that's used, since a quick round trip leaves the least room for the two halves to be uneven. <br>
+ * Frames are stamped with the server's tick and the time it happened, so once the offset is known, any tick can be
+ * placed on this machine's clock. <br>
+ * All times are in nanoseconds, from System.nanoTime() on whichever machine they're for.
+ *
+ * @author Sam Thayer
+ */
+public class ServerClock {
+	/** The number of recent offset estimates to choose from */
+	private static final int SAMPLE_COUNT = 8;
+
+	/** The time between ticks on the server */
+	private final long tickLength;
+
+	/** The most recent offset estimates, in the order they were taken, wrapping around */
+	private final long[] sampleOffsets;
+
+	/** The round trip time that each estimate in sampleOffsets came from */
+	private final long[] sampleRoundTrips;
+
+	/** The total number of estimates that have been taken */
+	private int samplesTaken;
+
+	/** The server's clock minus this machine's clock */
+	private long offset;
+
+	/** The newest tick that a frame has arrived for, or -1 if none have */
+	private int latestTick;
+
+	/** The server's time at latestTick */
+	private long latestTickTime;
+
+	/**
+	 * Makes a clock for a server that ticks the given number of times per second
+	 */
+	ServerClock(int ticksPerSecond) {
+		this.tickLength = 1000000000L / ticksPerSecond;
+		this.sampleOffsets = new long[SAMPLE_COUNT];
+		this.sampleRoundTrips = new long[SAMPLE_COUNT];
+		this.samplesTaken = 0;
+		this.offset = 0;
+		this.latestTick = -1;
+		this.latestTickTime = 0;
+	}
+
+	/**
+	 * Adds an offset estimate from a PONG that just arrived, given the time its PING was sent and the server's time when it
+	 * answered. Returns false if the times are impossible.
+	 */
+	synchronized boolean pongReceived(long pingSentAt, long serverTime) {
+		long roundTrip = System.nanoTime() - pingSentAt;
+		if (roundTrip < 0) {
+			return false;
+		}
+
+		int index = samplesTaken % SAMPLE_COUNT;
+		sampleOffsets[index] = serverTime - (pingSentAt + roundTrip / 2);
+		sampleRoundTrips[index] = roundTrip;
+		samplesTaken++;
+
+		int best = 0;
+		for (int i = 1; i < Math.min(samplesTaken, SAMPLE_COUNT); i++) {
+			if (sampleRoundTrips[i] < sampleRoundTrips[best]) {
+				best = i;
+			}
+		}
+		offset = sampleOffsets[best];
+		return true;
+	}
+
+	/**
+	 * Notes that a frame arrived for the given tick, which happened at the given time on the server
+	 */
+	synchronized void tickReceived(int tick, long serverTime) {
+		if (tick > latestTick) {
+			latestTick = tick;
+			latestTickTime = serverTime;
+		}
+	}
+
+	/**
+	 * Returns the time between the server's ticks
+	 */
+	public long getTickLength() {
+		return tickLength;
+	}
+
+	/**
+	 * Returns true once at least one offset estimate has been taken, so that the times this clock gives mean something
+	 */
+	public synchronized boolean isSynchronized() {
+		return samplesTaken > 0;
+	}
+
+	/**
+	 * Returns the server's clock minus this machine's clock
+	 */
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the newest tick that a frame has arrived for, or -1 if none have
+	 */
+	public synchronized int getLatestTick() {
+		return latestTick;
+	}
+
+	/**
+	 * Returns the time on this machine's clock that matches the given time on the server's
+	 */
+	public synchronized long toLocalTime(long serverTime) {
+		return serverTime - offset;
+	}
+
+	/**
+	 * Returns the time on the server's clock that matches the given time on this machine's
+	 */
+	public synchronized long toServerTime(long localTime) {
+		return localTime + offset;
+	}
+
+	/**
+	 * Returns the time on this machine's clock when the given tick happened, or will happen, on the server. Ticks are
+	 * assumed to be evenly spaced from the newest one that has arrived.
+	 */
+	public synchronized long tickToLocalTime(int tick) {
+		return latestTickTime + (tick - latestTick) * tickLength - offset;
+	}
+
+	/**
+	 * Returns the server's tick at the given time on this machine's clock, including how far it is through that tick. This
+	 * may be past the newest tick that has arrived, if the time is far enough along.
+	 */
+	public synchronized double tickAt(long localTime) {
+		return latestTick + (double) (localTime + offset - latestTickTime) / tickLength;
+	}
+
+	/**
+	 * Returns how long ago the given tick happened on the server, by this machine's clock
+	 */
+	public long ageOf(int tick) {
+		return System.nanoTime() - tickToLocalTime(tick);
+	}
+}
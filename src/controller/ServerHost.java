@@ -0,0 +1,49 @@
+package controller;
+
+import model.Participant.Direction;
+
+/**
+ * Whatever is running a {@link Server}: the MainController when a player hosts a game from the gui, or a
+ * {@link DedicatedServer} when nobody is playing on the server's machine. The Server tells its host how the connection
+ * process is going, and passes it the clients' inputs once the game is running.
+ *
+ * @author Sam Thayer
+ */
+public interface ServerHost {
+	/**
+	 * Indicates that a client connected, and that the given number of clients are still needed before the game can start
+	 */
+	public void clientConnected(int clientsStillNeeded);
+
+	/**
+	 * Indicates that every client the game needs has connected and settled on a format, so the game can be launched
+	 * whenever the host likes
+	 */
+	public void readyToLaunch();
+
+	/**
+	 * Indicates that the connection to a client was lost, which ends the game. The Server has already closed itself.
+	 */
+	public void lostConnection();
+
+	/**
+	 * Has the identified caveman throw its spear if he is holding it.
+	 */
+	public void tryThrowSpear(int cavemanNumber);
+
+	/**
+	 * Has the identified caveman throw its spear if he is holding it, for a remote player who is seeing the game the
+	 * given number of milliseconds late.
+	 */
+	public void tryThrowSpear(int cavemanNumber, int lagMillis);
+
+	/**
+	 * Has the identified caveman begin trying to move in the given direction.
+	 */
+	public void beginMovement(int cavemanNumber, Direction direction);
+
+	/**
+	 * Has the identified caveman stop trying to move in the given direction.
+	 */
+	public void endMovement(int cavemanNumber, Direction direction);
+}
@@ -0,0 +1,133 @@
+package controller;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task at a fixed rate on its own thread. This is the game clock, unless the game is on a {@link GameScheduler}.
+ * <br>
+ * Ticks are scheduled on System.nanoTime() by a {@link TickSchedule}, each one exactly one tick length after the last
+ * was due, so the loop doesn't drift the way it would if it slept for a tick length after each one. To wait for a tick,
+ * the thread parks until just before it's due, and then spins the rest of the way, since parking alone can oversleep by
+ * a millisecond or more. <br>
+ * When a tick runs so long that the next one is already due, or the thread is held up some other way, the overrun
+ * policy decides what happens to the ticks that were missed. Either way, the loop never tries to run more than
+ * MAX_CATCH_UP_TICKS back to back, so after a long stall the game carries on from where it was instead of racing to
+ * make up the time.
+ *
+ * @author Sam Thayer
+ */
+public class TickLoop implements Runnable, GameClock {
+	/** What to do with ticks that were missed because the loop fell behind */
+	public enum OverrunPolicy {
+		/** Run missed ticks back to back until the loop catches up, dropping any more than MAX_CATCH_UP_TICKS */
+		catchUp,
+		/** Run the most recently missed tick straight away and drop the rest, so no two ticks are run back to back */
+		skip
+	}
+
+	/** The most ticks that are run back to back to catch up */
+	public static final int MAX_CATCH_UP_TICKS = 5;
+
+	/** How long before a tick is due the thread stops parking and starts spinning */
+	static final long SPIN_THRESHOLD = 1000000L;
+
+	/** The thread's name */
+	private final String name;
+
+	/** The number of ticks per second */
+	private final int ticksPerSecond;
+
+	/** What to do with ticks that were missed */
+	private final OverrunPolicy overrunPolicy;
+
+	/** When ticks are due, or null until the loop starts */
+	private volatile TickSchedule schedule;
+
+	/** What to run every tick */
+	private final Runnable task;
+
+	/** The thread that runs the ticks, or null if the loop hasn't been started */
+	private Thread thread;
+
+	/** False once the loop has been stopped */
+	private volatile boolean running;
+
+	/**
+	 * Makes a loop that will run the given task the given number of times per second, on a thread with the given name,
+	 * once it's started
+	 */
+	public TickLoop(String name, int ticksPerSecond, OverrunPolicy overrunPolicy, Runnable task) {
+		if (ticksPerSecond <= 0) {
+			throw new IllegalArgumentException("Tick rates must be positive.");
+		}
+		this.name = name;
+		this.ticksPerSecond = ticksPerSecond;
+		this.overrunPolicy = overrunPolicy;
+		this.task = task;
+		this.running = true;
+	}
+
+	/**
+	 * Starts running ticks, with the first one right away
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("This loop has already been started.");
+		}
+		schedule = new TickSchedule(ticksPerSecond, overrunPolicy, System.nanoTime());
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public long getTickLength() {
+		return 1000000000L / ticksPerSecond;
+	}
+
+	@Override
+	public TickStatistics getStatistics() {
+		TickSchedule current = schedule;
+		return current == null ? new TickRecorder().snapshot(getTickLength()) : current.getStatistics();
+	}
+
+	/**
+	 * Runs ticks until the loop is stopped. This is what the loop's thread runs; don't call it directly.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			waitUntil(schedule.getNextTick());
+			if (!running) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			task.run();
+			schedule.tickRan(start, System.nanoTime(), null);
+		}
+	}
+
+	/**
+	 * Waits until the given time, or until the loop is stopped
+	 */
+	private void waitUntil(long deadline) {
+		while (running) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return;
+			} else if (remaining > SPIN_THRESHOLD) {
+				LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD);
+			} else {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package controller;
+
+/**
+ * Adds up how well ticks have kept time, so that {@link TickStatistics} snapshots can be taken. Ticks may be recorded on
+ * one thread while snapshots are taken on another.
+ *
+ * @author Sam Thayer
+ */
+class TickRecorder {
+	/** The number of ticks that have been run */
+	private long ticks;
+
+	/** The total start jitter of every tick */
+	private long totalStartJitter;
+
+	/** The longest start jitter of any tick */
+	private long longestStartJitter;
+
+	/** The start jitter of the most recent tick */
+	private long lastStartJitter;
+
+	/** The total time that ticks took to run */
+	private long totalTickTime;
+
+	/** The longest time that a tick took to run */
+	private long longestTickTime;
+
+	/** The number of ticks that finished after the next tick was due */
+	private long overruns;
+
+	/** The number of ticks that were dropped */
+	private long droppedTicks;
+
+	/**
+	 * Adds a tick that started the given time after it was due and took the given time to run. If it overran, the next
+	 * tick was already due when it finished, and the given number of ticks were dropped because of it.
+	 */
+	synchronized void record(long startJitter, long tickTime, boolean overran, long dropped) {
+		ticks++;
+		totalStartJitter += startJitter;
+		longestStartJitter = Math.max(longestStartJitter, startJitter);
+		lastStartJitter = startJitter;
+		totalTickTime += tickTime;
+		longestTickTime = Math.max(longestTickTime, tickTime);
+		if (overran) {
+			overruns++;
+		}
+		droppedTicks += dropped;
+	}
+
+	/**
+	 * Returns a snapshot of the ticks so far, which were meant to be the given time apart
+	 */
+	synchronized TickStatistics snapshot(long tickLength) {
+		return new TickStatistics(tickLength, ticks, totalStartJitter, longestStartJitter, lastStartJitter, totalTickTime, longestTickTime, overruns,
+				droppedTicks);
+	}
+}
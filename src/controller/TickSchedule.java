@@ -0,0 +1,86 @@
+package controller;
+
+import controller.TickLoop.OverrunPolicy;
+
+/**
+ * When one game's ticks are due, and how well they have been kept to. This is shared by {@link TickLoop}, which runs one
+ * game on its own thread, and {@link GameScheduler}, which runs many games on a few threads. <br>
+ * Ticks are scheduled on System.nanoTime(), each one exactly one tick length after the last was due. Whoever runs the
+ * ticks calls tickRan() after each one, which moves on to the next, drops whichever missed ticks the overrun policy
+ * won't run, and adds the tick to the statistics.
+ *
+ * @author Sam Thayer
+ */
+class TickSchedule {
+	/** The time between the starts of ticks */
+	private final long tickLength;
+
+	/** The most ticks that may be due at once before the rest are dropped */
+	private final int maxBehind;
+
+	/** The time that the next tick is due */
+	private long nextTick;
+
+	/** How well ticks have been kept to */
+	private final TickRecorder recorder;
+
+	/**
+	 * Makes a schedule for ticks the given number of times per second, with the first one due at the given time
+	 */
+	TickSchedule(int ticksPerSecond, OverrunPolicy overrunPolicy, long firstTick) {
+		if (ticksPerSecond <= 0) {
+			throw new IllegalArgumentException("Tick rates must be positive.");
+		}
+		this.tickLength = 1000000000L / ticksPerSecond;
+		this.maxBehind = overrunPolicy == OverrunPolicy.catchUp ? TickLoop.MAX_CATCH_UP_TICKS : 1;
+		this.nextTick = firstTick;
+		this.recorder = new TickRecorder();
+	}
+
+	/**
+	 * Returns the time between the starts of ticks
+	 */
+	long getTickLength() {
+		return tickLength;
+	}
+
+	/**
+	 * Returns the time that the next tick is due
+	 */
+	long getNextTick() {
+		return nextTick;
+	}
+
+	/**
+	 * Moves the next tick to the given time. This should only be done before the first tick.
+	 */
+	void setNextTick(long nextTick) {
+		this.nextTick = nextTick;
+	}
+
+	/**
+	 * Notes that the tick that was due ran between the given times, and moves on to the next one. The tick is also added
+	 * to the given recorder, if it isn't null, so that several schedules can be totalled up.
+	 */
+	void tickRan(long start, long end, TickRecorder total) {
+		long startJitter = start - nextTick;
+		nextTick += tickLength;
+
+		// Drop whichever missed ticks the policy won't run
+		long due = end - nextTick < 0 ? 0 : (end - nextTick) / tickLength + 1;
+		long dropped = Math.max(due - maxBehind, 0);
+		nextTick += dropped * tickLength;
+
+		recorder.record(startJitter, end - start, due > 0, dropped);
+		if (total != null) {
+			total.record(startJitter, end - start, due > 0, dropped);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of how well ticks have been kept to so far
+	 */
+	TickStatistics getStatistics() {
+		return recorder.snapshot(tickLength);
+	}
+}
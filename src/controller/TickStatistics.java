@@ -0,0 +1,126 @@
+package controller;
+
+/**
+ * A snapshot of how well a {@link TickLoop} has kept time. Get one with TickLoop.getStatistics(). <br>
+ * The counts start when the loop starts and only ever go up, so rates can be found by comparing two snapshots. A tick's
+ * start jitter is how long after its scheduled time it actually started, and its tick time is how long it took to run.
+ * Times are in nanoseconds.
+ *
+ * @author Sam Thayer
+ */
+public class TickStatistics {
+	/** The time that each tick is supposed to take */
+	private final long tickLength;
+
+	/** The number of ticks that have been run */
+	private final long ticks;
+
+	/** The total start jitter of every tick */
+	private final long totalStartJitter;
+
+	/** The longest start jitter of any tick */
+	private final long longestStartJitter;
+
+	/** The start jitter of the most recent tick */
+	private final long lastStartJitter;
+
+	/** The total time that ticks took to run */
+	private final long totalTickTime;
+
+	/** The longest time that a tick took to run */
+	private final long longestTickTime;
+
+	/** The number of ticks that ran late enough that the next one was already due */
+	private final long overruns;
+
+	/** The number of ticks that were dropped instead of being run, because the loop fell too far behind */
+	private final long droppedTicks;
+
+	/**
+	 * Makes a snapshot with the given numbers
+	 */
+	TickStatistics(long tickLength, long ticks, long totalStartJitter, long longestStartJitter, long lastStartJitter, long totalTickTime,
+			long longestTickTime, long overruns, long droppedTicks) {
+		this.tickLength = tickLength;
+		this.ticks = ticks;
+		this.totalStartJitter = totalStartJitter;
+		this.longestStartJitter = longestStartJitter;
+		this.lastStartJitter = lastStartJitter;
+		this.totalTickTime = totalTickTime;
+		this.longestTickTime = longestTickTime;
+		this.overruns = overruns;
+		this.droppedTicks = droppedTicks;
+	}
+
+	/**
+	 * Returns the time between the starts of ticks, when the loop is keeping up
+	 */
+	public long getTickLength() {
+		return tickLength;
+	}
+
+	/**
+	 * Returns the number of ticks that have been run
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Returns the average time between a tick being due and it starting, or 0 if no ticks have run
+	 */
+	public long getAverageStartJitter() {
+		return ticks == 0 ? 0 : totalStartJitter / ticks;
+	}
+
+	/**
+	 * Returns the longest time between a tick being due and it starting. Ticks that were run to catch up count too, so
+	 * this can be several tick lengths after a stall.
+	 */
+	public long getLongestStartJitter() {
+		return longestStartJitter;
+	}
+
+	/**
+	 * Returns the time between the most recent tick being due and it starting
+	 */
+	public long getLastStartJitter() {
+		return lastStartJitter;
+	}
+
+	/**
+	 * Returns the average time that a tick took to run, or 0 if no ticks have run
+	 */
+	public long getAverageTickTime() {
+		return ticks == 0 ? 0 : totalTickTime / ticks;
+	}
+
+	/**
+	 * Returns the longest time that a tick took to run
+	 */
+	public long getLongestTickTime() {
+		return longestTickTime;
+	}
+
+	/**
+	 * Returns the number of ticks that finished after the next tick was already due
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Returns the number of ticks that were never run, because the loop fell further behind than its overrun policy lets
+	 * it catch up
+	 */
+	public long getDroppedTicks() {
+		return droppedTicks;
+	}
+
+	@Override
+	public String toString() {
+		return ticks + " ticks of " + tickLength / 1000 + "us, start jitter " + getAverageStartJitter() / 1000 + "us (longest " + longestStartJitter / 1000
+				+ "us), tick time " + getAverageTickTime() / 1000 + "us (longest " + longestTickTime / 1000 + "us), " + overruns + " overruns, "
+				+ droppedTicks + " dropped";
+	}
+}
@@ -0,0 +1,48 @@
+package controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import controller.NetworkingLibrary.NetworkConnection;
+
+/**
+ * The part of a {@link NetworkConnection} that actually moves bytes. Everything else about a connection (framing,
+ * queueing, callbacks) is the same no matter which {@link NetworkingLibrary.Backend} it uses, so each backend only has
+ * to provide one of these. <br>
+ * Every operation finishes by calling one of NetworkingLibrary's completion methods with the connection it was given,
+ * the same way a CompletionHandler is given its attachment. Only one read and one write may be in progress at a time.
+ *
+ * @author Sam Thayer
+ */
+interface Transport {
+	/**
+	 * Connects to the given address. When finished, calls either NetworkingLibrary.connectCompleted() or
+	 * NetworkingLibrary.connectFailed().
+	 */
+	void connect(InetSocketAddress address, NetworkConnection connection);
+
+	/**
+	 * Reads whatever data is available into the given buffer, starting at its position, waiting for some to arrive if there
+	 * isn't any. When finished, calls NetworkingLibrary.readCompleted() with the number of bytes read (or -1 if the other
+	 * end closed the stream), or NetworkingLibrary.readFailed().
+	 */
+	void read(ByteBuffer buffer, NetworkConnection connection);
+
+	/**
+	 * Writes as much of the first count messages as it can, in order. When finished, calls either
+	 * NetworkingLibrary.writeCompleted() or NetworkingLibrary.writeFailed(). It's fine for some of the data to still be left
+	 * when the write completes; each message's position shows how much of it was written.
+	 */
+	void write(ByteBuffer[] messages, int count, NetworkConnection connection);
+
+	/**
+	 * Returns the address of the other end of the connection
+	 */
+	InetSocketAddress getRemoteAddress() throws IOException;
+
+	/**
+	 * Closes the connection. Any read or write that is still in progress fails, or is never finished.
+	 */
+	void close();
+}
@@ -12,7 +12,7 @@ import model.Spear.SpearState;
  * by touching the Mammoth, and can be picked up again by contact with another (conscious) Caveman.
  * 
  * All dimensions are measured in percents, so x=.5 is halfway accross the board. All speeds are measured in percent per
- * frame.
+ * frame, where a frame is 1/40th of a second; each move() covers timeScale frames.
  * 
  * @author Sam Thayer
  */
@@ -67,6 +67,15 @@ public class Caveman extends Participant {
 		this.spear = new Spear(x, y, color);
 	}
 
+	/**
+	 * Sets the number of frames that each call to move() covers, for this caveman and his spear
+	 */
+	@Override
+	public void setTimeScale(double timeScale) {
+		super.setTimeScale(timeScale);
+		spear.setTimeScale(timeScale);
+	}
+
 	/** Returns true if this Caveman is holding his spear, and false otherwise. */
 	public boolean hasSpear() {
 		return spear.state == SpearState.held;
@@ -91,7 +100,7 @@ public class Caveman extends Participant {
 	@Override
 	public void move() {
 		if (moving && conscious) {
-			super.move(CAVEMAN_SPEED);
+			super.move(CAVEMAN_SPEED * timeScale);
 		}
 
 		if (hasSpear()) {
@@ -123,7 +132,7 @@ public class Caveman extends Participant {
 	public void tryThrowSpear() {
 		if (conscious && spear.state == SpearState.held) {
 			spear.state = SpearState.active;
-			spear.remainingAirtime = Spear.SPEAR_AIR_TIME;
+			spear.remainingAirtime = Math.max((int) Math.round(Spear.SPEAR_AIR_TIME / timeScale), 1);
 		}
 	}
 
@@ -55,7 +55,7 @@ public class Mammoth extends Participant {
 	/**
 	 * An array to identify cavemen that this Mammoth is angry at.
 	 * 
-	 * aggros[0] is the number of remaining frames for which the Mammoth will target caveman 0.
+	 * aggros[0] is the number of remaining moves for which the Mammoth will target caveman 0.
 	 */
 	private int[] aggros;
 
@@ -82,14 +82,14 @@ public class Mammoth extends Participant {
 	}
 
 	/**
-	 * Makes this mammoth take damage for 1 frame of 1 collided spear, and allows the movement algorithm to prioritize the
+	 * Makes this mammoth take damage for 1 move of 1 collided spear, and allows the movement algorithm to prioritize the
 	 * caveman that hit it.
 	 */
 	public void takeDamage(int caveman) {
-		hp -= SPEAR_DPF;
+		hp -= SPEAR_DPF * timeScale;
 		if (hp < 0)
 			hp = 0;
-		aggros[caveman] = AGGRO_FRAMES;
+		aggros[caveman] = (int) Math.round(AGGRO_FRAMES / timeScale);
 	}
 
 	/**
@@ -189,14 +189,14 @@ public class Mammoth extends Participant {
 		Vector vec2 = calculateInfluence(2);
 
 		Vector move = vec0.plus(vec1).plus(vec2);
-		move.scaleBy(maxSpeed);
+		move.scaleBy(maxSpeed * timeScale);
 
 		// Actually move:
 		x += move.x;
 		y += move.y;
 
 		// Also, turn to face that direction if the mammoth is moving very quickly
-		if (move.norm() > maxSpeed * MAMMOTH_TURN_SCALAR) {
+		if (move.norm() > maxSpeed * timeScale * MAMMOTH_TURN_SCALAR) {
 			setDirection(move);
 		}
 
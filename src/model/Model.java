@@ -21,6 +21,33 @@ public class Model {
 	/** A reference to the mammoth */
 	private Mammoth mammoth;
 
+	/**
+	 * The number of frames of the mammoth's hitbox that are remembered for spears to be checked against, when the game
+	 * ticks at the usual rate
+	 */
+	public static final int MAMMOTH_HISTORY_LENGTH = 16;
+
+	/** The number of ticks of the mammoth's hitbox that are actually remembered, which covers the same amount of time */
+	private int historyLength;
+
+	/** The left edge of the mammoth's hitbox in each remembered frame, indexed by frame number modulo historyLength */
+	private double[] mammothLeftX;
+	/** The top edge of the mammoth's hitbox in each remembered frame */
+	private double[] mammothTopY;
+	/** The right edge of the mammoth's hitbox in each remembered frame */
+	private double[] mammothRightX;
+	/** The bottom edge of the mammoth's hitbox in each remembered frame */
+	private double[] mammothBottomY;
+
+	/** The number of frames that have been calculated */
+	private int frameCount;
+
+	/**
+	 * How many frames back each spear is checked against the mammoth, indexed the same as the spears. This is how far
+	 * behind the game its thrower was seeing it when they threw it.
+	 */
+	private int[] spearRewinds;
+
 	/** A state that the game can be in */
 	public enum GameState {
 		running, win, loss
@@ -54,6 +81,19 @@ public class Model {
 	 *            The maximum speed that the mammoth should be able to move at
 	 */
 	public Model(double mammothSpeed) {
+		this(mammothSpeed, 1);
+	}
+
+	/**
+	 * Creates a Model that ticks at a different rate than usual
+	 * 
+	 * @param mammothSpeed
+	 *            The maximum speed that the mammoth should be able to move at
+	 * @param timeScale
+	 *            The number of usual frames that each call to calculateNextFrame() covers, so .5 for a game that ticks
+	 *            twice as often
+	 */
+	public Model(double mammothSpeed, double timeScale) {
 		cavemen = new Caveman[3];
 		spears = new Spear[3];
 
@@ -67,6 +107,19 @@ public class Model {
 		spears[2] = cavemen[2].getSpear();
 
 		mammoth = new Mammoth(mammothSpeed, cavemen);
+
+		mammoth.setTimeScale(timeScale);
+		for (Caveman c : cavemen) {
+			c.setTimeScale(timeScale);
+		}
+
+		historyLength = Math.max((int) Math.ceil(MAMMOTH_HISTORY_LENGTH / timeScale), 1);
+		mammothLeftX = new double[historyLength];
+		mammothTopY = new double[historyLength];
+		mammothRightX = new double[historyLength];
+		mammothBottomY = new double[historyLength];
+		frameCount = 0;
+		spearRewinds = new int[spears.length];
 	}
 
 	/**
@@ -81,6 +134,7 @@ public class Model {
 		}
 
 		mammoth.move();
+		rememberMammoth();
 
 		// Caveman can pick up their spear
 		for (int i = 0; i < cavemen.length; i++) {
@@ -113,7 +167,7 @@ public class Model {
 
 		// Spears damage the mammoth
 		for (int i = 0; i < spears.length; i++) {
-			if (spears[i].state == SpearState.active && mammoth.collidedWith(spears[i])) {
+			if (spears[i].state == SpearState.active && spearHitMammoth(i)) {
 				mammoth.takeDamage(i);
 			}
 		}
@@ -138,6 +192,39 @@ public class Model {
 		return GameState.running;
 	}
 
+	/**
+	 * Remembers where the mammoth is this frame. This works out the hitbox the same way Mammoth.getHitbox() does, without
+	 * making a new one every frame.
+	 */
+	private void rememberMammoth() {
+		boolean upright = mammoth.getDirection() == Direction.up || mammoth.getDirection() == Direction.down;
+		int index = frameCount % historyLength;
+		mammothLeftX[index] = mammoth.getX();
+		mammothTopY[index] = mammoth.getY();
+		mammothRightX[index] = mammoth.getX() + (upright ? Mammoth.MAMMOTH_WIDTH : Mammoth.MAMMOTH_LENGTH);
+		mammothBottomY[index] = mammoth.getY() + (upright ? Mammoth.MAMMOTH_LENGTH : Mammoth.MAMMOTH_WIDTH);
+		frameCount++;
+	}
+
+	/**
+	 * Returns true if the identified spear hit the mammoth, as its thrower saw the mammoth. The further behind they were,
+	 * the further back the mammoth is rewound, but never further than it's remembered.
+	 */
+	private boolean spearHitMammoth(int spearNumber) {
+		// frameCount already includes this frame
+		int rewind = Math.min(spearRewinds[spearNumber], Math.min(frameCount - 1, historyLength - 1));
+		if (rewind == 0) {
+			return mammoth.collidedWith(spears[spearNumber]);
+		}
+
+		// This works the same way as Participant.collidedWith()
+		Hitbox spear = spears[spearNumber].getHitbox();
+		int index = (frameCount - 1 - rewind) % historyLength;
+		boolean overlappingX = spear.leftX < mammothRightX[index] && mammothLeftX[index] < spear.rightX;
+		boolean overlappingY = spear.topY < mammothBottomY[index] && mammothTopY[index] < spear.bottomY;
+		return overlappingX && overlappingY;
+	}
+
 	/**
 	 * Controls a Caveman's movement
 	 * 
@@ -160,6 +247,24 @@ public class Model {
 	 *            An identifier for a Caveman: 0, 1, or 2
 	 */
 	public void tryThrowSpear(int cavemanNumber) {
+		tryThrowSpear(cavemanNumber, 0);
+	}
+
+	/**
+	 * Makes a Caveman try to throw his spear, for a player who is seeing the game the given number of frames late. While
+	 * it's in the air, the spear hits the mammoth wherever that player saw it. Does nothing if the Caveman is not holding
+	 * his spear.
+	 * 
+	 * @param cavemanNumber
+	 *            An identifier for a Caveman: 0, 1, or 2
+	 * @param rewind
+	 *            The number of frames behind the player is
+	 */
+	public void tryThrowSpear(int cavemanNumber, int rewind) {
+		boolean wasHeld = cavemen[cavemanNumber].hasSpear();
 		cavemen[cavemanNumber].tryThrowSpear();
+		if (wasHeld && spears[cavemanNumber].state == SpearState.active) {
+			spearRewinds[cavemanNumber] = Math.max(rewind, 0);
+		}
 	}
 }
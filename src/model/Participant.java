@@ -6,7 +6,7 @@ import java.awt.Color;
  * A class to represent objects in the game. All game objects extend Participant.
  * 
  * All dimensions are measured in percents, so x=.5 is halfway accross the board. All speeds are measured in percent per
- * frame.
+ * frame, where a frame is 1/40th of a second; each move() covers timeScale frames.
  * 
  * @author Sam Thayer
  */
@@ -29,6 +29,9 @@ public abstract class Participant {
 	/** The Direction that this participant is facing */
 	protected Direction direction;
 
+	/** The number of frames that each call to move() covers. This is 1 unless the game is ticking faster or slower. */
+	protected double timeScale = 1;
+
 	/**
 	 * Returns the x coordinate of the top-left corner of this participant's hitbox
 	 */
@@ -70,6 +73,14 @@ public abstract class Participant {
 		this.direction = direction;
 	}
 
+	/**
+	 * Sets the number of frames that each call to move() covers, so that the game plays at the same speed no matter how
+	 * often it ticks
+	 */
+	public void setTimeScale(double timeScale) {
+		this.timeScale = timeScale;
+	}
+
 	/** Returns the color of this Participant */
 	public Color getColor() {
 		return color;
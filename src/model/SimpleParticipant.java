@@ -9,8 +9,8 @@ import model.Participant.Direction;
  * its state (location, color, etc). It doesn't have extra information required for game logic (SpearState, movement
  * speed, etc).
  * 
- * This class is suitable for passing information to the view, and can be translated to and from Strings so it is
- * suitable for passing across the network as well.
+ * This class is suitable for passing information to the view, and can be translated to and from Strings (or, more
+ * compactly, to and from bytes with {@link SnapshotCodec}) so it is suitable for passing across the network as well.
  * 
  * @author Sam Thayer
  */
@@ -23,6 +23,12 @@ public class SimpleParticipant {
 		mammoth, caveman, spear
 	}
 
+	/**
+	 * The furthest a participant's hitbox can move between two snapshots and still be interpolated. Anything that moves
+	 * further than this must have jumped (like at the start of a round), so it shouldn't be drawn sliding across the board.
+	 */
+	public static final double MAX_INTERPOLATED_DISTANCE = .1;
+
 	/** This Participant's Hitbox */
 	private Hitbox hitbox;
 	/** The direction this participant is facing */
@@ -58,6 +64,18 @@ public class SimpleParticipant {
 		}
 	}
 
+	/**
+	 * Makes a SimpleParticipant with the given state. This is used by {@link SnapshotCodec} when decoding.
+	 */
+	SimpleParticipant(Hitbox hitbox, Direction direction, ParticipantType type, Color color, double hp, boolean conscious) {
+		this.hitbox = hitbox;
+		this.direction = direction;
+		this.type = type;
+		this.color = color;
+		this.hp = hp;
+		this.conscious = conscious;
+	}
+
 	/**
 	 * Makes a SimpleParticipant out of the given String representation of one. This constructor should only be used with
 	 * Strings that were made by SimpleParticipant.toString().
@@ -96,6 +114,31 @@ public class SimpleParticipant {
 		}
 	}
 
+	/**
+	 * Returns a SimpleParticipant partway between the two given ones, for drawing a moment that falls between two
+	 * snapshots. The hitbox is moved the given fraction of the way from before's to after's, and everything else is the
+	 * same as after. If the two don't look like the same participant moving smoothly, after itself is returned.
+	 * 
+	 * @param fraction
+	 *            How far from before to after the moment is, from 0 to 1
+	 */
+	public static SimpleParticipant interpolate(SimpleParticipant before, SimpleParticipant after, double fraction) {
+		if (before.type != after.type || before.direction != after.direction) {
+			// Turning changes the hitbox's shape, so there's nothing sensible in between
+			return after;
+		}
+
+		double dx = after.hitbox.leftX - before.hitbox.leftX;
+		double dy = after.hitbox.topY - before.hitbox.topY;
+		if (Math.abs(dx) > MAX_INTERPOLATED_DISTANCE || Math.abs(dy) > MAX_INTERPOLATED_DISTANCE) {
+			return after;
+		}
+
+		Hitbox hitbox = new Hitbox(before.hitbox.leftX + dx * fraction, before.hitbox.topY + dy * fraction, after.hitbox.width,
+				after.hitbox.length);
+		return new SimpleParticipant(hitbox, after.direction, after.type, after.color, after.hp, after.conscious);
+	}
+
 	/** Returns this participant's hitbox */
 	public Hitbox getHitbox() {
 		return hitbox;
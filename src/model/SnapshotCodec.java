@@ -0,0 +1,377 @@
+package model;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+
+import model.Participant.Direction;
+import model.SimpleParticipant.ParticipantType;
+
+/**
+ * A compact binary format for arrays of {@link SimpleParticipant}s, which is much smaller and faster to read than their
+ * String representations. <br>
+ * Coordinates are stored as fixed-point numbers with a precision of 1/COORDINATE_SCALE of the board, which is far finer
+ * than a pixel. Widths and lengths aren't stored at all, since they are determined by a participant's type and
+ * direction. Colors are stored as an index into a small palette of the colors the game uses, with a fallback for any
+ * other color. <br>
+ * <br>
+ * The format is a single unsigned byte holding the number of participants, followed by each participant:
+ * <ol>
+ * <li>A header byte. Bits 0-1 hold the type, bits 2-3 hold the direction, bit 4 is set if the participant is a conscious
+ * caveman, and bit 5 is set if the color is not in the palette.</li>
+ * <li>Either a palette index (1 byte), or if bit 5 of the header was set, the color's red, green, and blue values (3
+ * bytes).</li>
+ * <li>The x and y coordinates of the top-left corner of the hitbox (2 bytes each).</li>
+ * <li>Mammoths only: the HP, scaled so that 1 is MAX_HP (2 bytes).</li>
+ * </ol>
+ * All multi-byte values are big-endian. <br>
+ * <br>
+ * Snapshots can also be encoded as a delta against an earlier snapshot with the same number of participants, in which
+ * case only what changed is stored. The delta format is a byte holding the number of participants, followed by a bitmask
+ * (one bit per participant, in as many bytes as needed) of which participants changed. Each changed participant then
+ * has a byte saying which of its fields changed, followed by those fields in the order and format listed above (the
+ * header and color count as one field).
+ *
+ * @author Sam Thayer
+ */
+public class SnapshotCodec {
+	/** The number of fixed-point units in the width of the board */
+	public static final int COORDINATE_SCALE = 1 << 14;
+
+	/** The fixed-point value that represents full HP */
+	public static final int MAX_HP = 0xFFFF;
+
+	/** The colors that can be stored as a one-byte index */
+	private static final Color[] PALETTE = { Mammoth.MAMMOTH_COLOR, Color.red, Color.cyan, Color.yellow };
+
+	private static final int TYPE_MASK = 0x03;
+	private static final int DIRECTION_SHIFT = 2;
+	private static final int DIRECTION_MASK = 0x03 << DIRECTION_SHIFT;
+	private static final int CONSCIOUS_FLAG = 1 << 4;
+	private static final int CUSTOM_COLOR_FLAG = 1 << 5;
+
+	/** The most bytes that a single participant can take up */
+	private static final int MAX_PARTICIPANT_SIZE = 1 + 3 + 2 + 2 + 2;
+
+	/** The most participants that can be stored in one snapshot */
+	public static final int MAX_PARTICIPANTS = 0xFF;
+
+	// Bits in a delta's per-participant mask of which fields changed
+	private static final int HEADER_CHANGED = 1 << 0;
+	private static final int X_CHANGED = 1 << 1;
+	private static final int Y_CHANGED = 1 << 2;
+	private static final int HP_CHANGED = 1 << 3;
+
+	/** This class only has static methods */
+	private SnapshotCodec() {
+	}
+
+	/**
+	 * Returns the most bytes that encoding the given number of participants could take up
+	 */
+	public static int maxEncodedSize(int participantCount) {
+		return 1 + participantCount * MAX_PARTICIPANT_SIZE;
+	}
+
+	/**
+	 * Returns the most bytes that encoding a delta of the given number of participants could take up
+	 */
+	public static int maxEncodedDeltaSize(int participantCount) {
+		return 1 + (participantCount + 7) / 8 + participantCount * (1 + MAX_PARTICIPANT_SIZE);
+	}
+
+	/**
+	 * Writes the given participants to the given buffer, starting at its position. The buffer must have at least
+	 * maxEncodedSize(participants.length) bytes remaining.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If there are more than MAX_PARTICIPANTS participants
+	 */
+	public static void encode(SimpleParticipant[] participants, ByteBuffer out) {
+		if (participants.length > MAX_PARTICIPANTS) {
+			throw new IllegalArgumentException("Too many participants to encode: " + participants.length);
+		}
+
+		out.put((byte) participants.length);
+		for (SimpleParticipant p : participants) {
+			encode(p, out);
+		}
+	}
+
+	/**
+	 * Reads an array of participants from the given buffer, starting at its position. This should only be used with data
+	 * that was written by encode().
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the data is malformed
+	 */
+	public static SimpleParticipant[] decode(ByteBuffer in) {
+		try {
+			SimpleParticipant[] participants = new SimpleParticipant[in.get() & 0xFF];
+			for (int i = 0; i < participants.length; i++) {
+				participants[i] = decodeParticipant(in);
+			}
+			return participants;
+		} catch (RuntimeException e) {
+			// If anything goes wrong at all, the data was malformed
+			throw new IllegalArgumentException("The given data was not a valid encoded snapshot");
+		}
+	}
+
+	/**
+	 * Writes a delta that turns baseline into participants to the given buffer, starting at its position. The buffer must
+	 * have at least maxEncodedDeltaSize(participants.length) bytes remaining. Changes too small to survive encoding are
+	 * ignored, so the decoded result is exactly what decode() would produce from a full encoding of participants.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the two arrays aren't the same length, or if there are more than MAX_PARTICIPANTS participants
+	 */
+	public static void encodeDelta(SimpleParticipant[] baseline, SimpleParticipant[] participants, ByteBuffer out) {
+		if (baseline.length != participants.length) {
+			throw new IllegalArgumentException("A delta can only be encoded between snapshots of the same size");
+		}
+		if (participants.length > MAX_PARTICIPANTS) {
+			throw new IllegalArgumentException("Too many participants to encode: " + participants.length);
+		}
+
+		out.put((byte) participants.length);
+
+		// Leave room for the bitmask of changed participants, and fill it in as we go
+		int bitmaskStart = out.position();
+		int bitmaskLength = (participants.length + 7) / 8;
+		for (int i = 0; i < bitmaskLength; i++) {
+			out.put((byte) 0);
+		}
+
+		for (int i = 0; i < participants.length; i++) {
+			int changes = changedFields(baseline[i], participants[i]);
+			if (changes == 0) {
+				continue;
+			}
+
+			int maskIndex = bitmaskStart + i / 8;
+			out.put(maskIndex, (byte) (out.get(maskIndex) | (1 << (i % 8))));
+			out.put((byte) changes);
+			encodeFields(participants[i], changes, out);
+		}
+	}
+
+	/**
+	 * Reads a delta written by encodeDelta() from the given buffer, starting at its position, and applies it to baseline.
+	 * Participants that didn't change are shared with baseline rather than copied.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the data is malformed, or doesn't match the baseline
+	 */
+	public static SimpleParticipant[] decodeDelta(SimpleParticipant[] baseline, ByteBuffer in) {
+		try {
+			SimpleParticipant[] participants = new SimpleParticipant[in.get() & 0xFF];
+			if (participants.length != baseline.length) {
+				throw new IllegalArgumentException();
+			}
+
+			int bitmaskStart = in.position();
+			in.position(bitmaskStart + (participants.length + 7) / 8);
+
+			for (int i = 0; i < participants.length; i++) {
+				if ((in.get(bitmaskStart + i / 8) & (1 << (i % 8))) == 0) {
+					participants[i] = baseline[i];
+				} else {
+					participants[i] = decodeFields(baseline[i], in.get() & 0xFF, in);
+				}
+			}
+			return participants;
+		} catch (RuntimeException e) {
+			// If anything goes wrong at all, the data was malformed
+			throw new IllegalArgumentException("The given data was not a valid encoded delta");
+		}
+	}
+
+	/**
+	 * A helper method that writes one participant to the given buffer
+	 */
+	private static void encode(SimpleParticipant p, ByteBuffer out) {
+		int fields = HEADER_CHANGED | X_CHANGED | Y_CHANGED;
+		if (p.getType() == ParticipantType.mammoth) {
+			fields |= HP_CHANGED;
+		}
+		encodeFields(p, fields, out);
+	}
+
+	/**
+	 * A helper method that reads one participant from the given buffer
+	 */
+	private static SimpleParticipant decodeParticipant(ByteBuffer in) {
+		// The header always comes first, and says whether there's an HP field
+		int header = in.get(in.position()) & 0xFF;
+		int fields = HEADER_CHANGED | X_CHANGED | Y_CHANGED;
+		if ((header & TYPE_MASK) == ParticipantType.mammoth.ordinal()) {
+			fields |= HP_CHANGED;
+		}
+		return decodeFields(null, fields, in);
+	}
+
+	/**
+	 * A helper method that returns a mask of the fields whose encoded values differ between the two participants
+	 */
+	private static int changedFields(SimpleParticipant before, SimpleParticipant after) {
+		int changes = 0;
+		if (headerOf(before) != headerOf(after) || !before.getColor().equals(after.getColor())) {
+			changes |= HEADER_CHANGED;
+		}
+		if (toFixedPoint(before.getHitbox().leftX) != toFixedPoint(after.getHitbox().leftX)) {
+			changes |= X_CHANGED;
+		}
+		if (toFixedPoint(before.getHitbox().topY) != toFixedPoint(after.getHitbox().topY)) {
+			changes |= Y_CHANGED;
+		}
+		if (after.getType() == ParticipantType.mammoth && (before.getType() != ParticipantType.mammoth || hpToFixedPoint(before) != hpToFixedPoint(after))) {
+			changes |= HP_CHANGED;
+		}
+		return changes;
+	}
+
+	/**
+	 * A helper method that writes the given fields of one participant to the given buffer
+	 */
+	private static void encodeFields(SimpleParticipant p, int fields, ByteBuffer out) {
+		if ((fields & HEADER_CHANGED) != 0) {
+			out.put((byte) headerOf(p));
+
+			int paletteIndex = paletteIndexOf(p.getColor());
+			if (paletteIndex == -1) {
+				out.put((byte) p.getColor().getRed());
+				out.put((byte) p.getColor().getGreen());
+				out.put((byte) p.getColor().getBlue());
+			} else {
+				out.put((byte) paletteIndex);
+			}
+		}
+
+		if ((fields & X_CHANGED) != 0) {
+			out.putShort(toFixedPoint(p.getHitbox().leftX));
+		}
+		if ((fields & Y_CHANGED) != 0) {
+			out.putShort(toFixedPoint(p.getHitbox().topY));
+		}
+		if ((fields & HP_CHANGED) != 0) {
+			out.putShort(hpToFixedPoint(p));
+		}
+	}
+
+	/**
+	 * A helper method that reads the given fields of one participant from the given buffer. Any field that isn't read is
+	 * copied from baseline, which may only be null if every field is read.
+	 */
+	private static SimpleParticipant decodeFields(SimpleParticipant baseline, int fields, ByteBuffer in) {
+		ParticipantType type;
+		Direction direction;
+		Color color;
+		boolean conscious;
+		if ((fields & HEADER_CHANGED) != 0) {
+			int header = in.get() & 0xFF;
+			type = ParticipantType.values()[header & TYPE_MASK];
+			direction = Direction.values()[(header & DIRECTION_MASK) >> DIRECTION_SHIFT];
+			conscious = (header & CONSCIOUS_FLAG) != 0;
+
+			if ((header & CUSTOM_COLOR_FLAG) != 0) {
+				color = new Color(in.get() & 0xFF, in.get() & 0xFF, in.get() & 0xFF);
+			} else {
+				color = PALETTE[in.get() & 0xFF];
+			}
+		} else {
+			type = baseline.getType();
+			direction = baseline.getDirection();
+			conscious = type == ParticipantType.caveman && baseline.isConscious();
+			color = baseline.getColor();
+		}
+
+		double x = (fields & X_CHANGED) != 0 ? fromFixedPoint(in.getShort()) : baseline.getHitbox().leftX;
+		double y = (fields & Y_CHANGED) != 0 ? fromFixedPoint(in.getShort()) : baseline.getHitbox().topY;
+
+		double hp = 0;
+		if ((fields & HP_CHANGED) != 0) {
+			hp = (in.getShort() & 0xFFFF) / (double) MAX_HP;
+		} else if (type == ParticipantType.mammoth) {
+			hp = baseline.getHP();
+		}
+
+		return new SimpleParticipant(hitboxFor(type, direction, x, y), direction, type, color, hp, conscious);
+	}
+
+	/**
+	 * A helper method that returns the header byte for the given participant
+	 */
+	private static int headerOf(SimpleParticipant p) {
+		int header = p.getType().ordinal() | (p.getDirection().ordinal() << DIRECTION_SHIFT);
+		if (p.getType() == ParticipantType.caveman && p.isConscious()) {
+			header |= CONSCIOUS_FLAG;
+		}
+		if (paletteIndexOf(p.getColor()) == -1) {
+			header |= CUSTOM_COLOR_FLAG;
+		}
+		return header;
+	}
+
+	/**
+	 * Converts a mammoth's HP to fixed-point
+	 */
+	private static short hpToFixedPoint(SimpleParticipant mammoth) {
+		return (short) Math.round(Math.max(0, Math.min(1, mammoth.getHP())) * MAX_HP);
+	}
+
+	/**
+	 * Returns the hitbox that a participant of the given type would have at the given location while facing the given
+	 * direction
+	 */
+	static Hitbox hitboxFor(ParticipantType type, Direction direction, double x, double y) {
+		double width;
+		double length;
+		switch (type) {
+		case mammoth:
+			width = Mammoth.MAMMOTH_WIDTH;
+			length = Mammoth.MAMMOTH_LENGTH;
+			break;
+		case caveman:
+			width = Caveman.CAVEMAN_WIDTH;
+			length = Caveman.CAVEMAN_LENGTH;
+			break;
+		default:
+			width = Spear.SPEAR_WIDTH;
+			length = Spear.SPEAR_LENGTH;
+			break;
+		}
+
+		if (direction == Direction.up || direction == Direction.down) {
+			return new Hitbox(x, y, width, length);
+		} else {
+			return new Hitbox(x, y, length, width);
+		}
+	}
+
+	/**
+	 * Returns the index of the given color in the palette, or -1 if it isn't there
+	 */
+	private static int paletteIndexOf(Color color) {
+		for (int i = 0; i < PALETTE.length; i++) {
+			if (PALETTE[i].equals(color)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Converts a coordinate to fixed-point, clamping it to the range that can be stored
+	 */
+	static short toFixedPoint(double coordinate) {
+		long fixed = Math.round(coordinate * COORDINATE_SCALE);
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, fixed));
+	}
+
+	/**
+	 * Converts a fixed-point coordinate back to a double
+	 */
+	static double fromFixedPoint(short fixed) {
+		return fixed / (double) COORDINATE_SCALE;
+	}
+}
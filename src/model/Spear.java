@@ -9,7 +9,7 @@ import java.awt.Color;
  * the direction the caveman was facing when he threw it.
  * 
  * All dimensions are measured in percents, so x=.5 is halfway accross the board. All speeds are measured in percent per
- * frame.
+ * frame, where a frame is 1/40th of a second; each move() covers timeScale frames.
  * 
  * @author Sam Thayer
  */
@@ -29,7 +29,7 @@ public class Spear extends Participant {
 	protected SpearState state;
 
 	/**
-	 * The Number of frames that before this spear becomes inactive. This value is irrelevant if this Spear is not active.
+	 * The Number of moves before this spear becomes inactive. This value is irrelevant if this Spear is not active.
 	 */
 	protected int remainingAirtime;
 
@@ -66,7 +66,7 @@ public class Spear extends Participant {
 			return;
 		// if this spear is held, the caveman will move it whenever it moves
 
-		super.move(SPEAR_SPEED);
+		super.move(SPEAR_SPEED * timeScale);
 		remainingAirtime--;
 		if (remainingAirtime == 0) {
 			state = SpearState.grounded;
@@ -3,8 +3,12 @@ package view;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.DisplayMode;
 import java.awt.Font;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
@@ -29,6 +33,9 @@ import model.SimpleParticipant;
 public class GameView extends JPanel implements ActionListener, GameUpdateHandler {
 	private static final long serialVersionUID = 6118153292544416756L;
 
+	/** The number of frames per second to draw if the screen's refresh rate can't be found */
+	private static final int DEFAULT_REFRESH_RATE = 60;
+
 	/** A panel to display the game area */
 	private GamePanel gamePanel;
 
@@ -136,6 +143,18 @@ public class GameView extends JPanel implements ActionListener, GameUpdateHandle
 		gamePanel.reset();
 	}
 
+	/**
+	 * Returns the refresh rate of the screen that this view is on, since there's no point drawing any faster than that
+	 */
+	@Override
+	public int getUpdateRate() {
+		GraphicsConfiguration configuration = getGraphicsConfiguration();
+		GraphicsDevice device = configuration != null ? configuration.getDevice()
+				: GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+		int refreshRate = device.getDisplayMode().getRefreshRate();
+		return refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : refreshRate;
+	}
+
 	@Override
 	public void newFrame(SimpleParticipant[] participants) {
 		gamePanel.update(participants);